@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line. Unless a mode or time unit
+ * is given, each benchmark is measured twice: for throughput in ops/s, and
+ * sampled for latency percentiles in microseconds. The gc profiler, which reports
+ * the allocation rate, is on unless other profilers are given.
+ */
+public class BenchMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+				|| cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		if (!cmd.getBenchModes().isEmpty() || cmd.getTimeUnit().hasValue()) {
+			new Runner(withProfiler(new OptionsBuilder().parent(cmd), cmd).build()).run();
+			return;
+		}
+		new Runner(withProfiler(new OptionsBuilder().parent(cmd), cmd)
+				.mode(Mode.Throughput).timeUnit(TimeUnit.SECONDS).build()).run();
+		new Runner(withProfiler(new OptionsBuilder().parent(cmd), cmd)
+				.mode(Mode.SampleTime).timeUnit(TimeUnit.MICROSECONDS).build()).run();
+	}
+
+
+	private static ChainedOptionsBuilder withProfiler(ChainedOptionsBuilder options, CommandLineOptions cmd) {
+		if (cmd.getProfilers().isEmpty())
+			options.addProfiler(GCProfiler.class);
+		return options;
+	}
+
+}
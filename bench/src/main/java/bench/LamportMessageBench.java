@@ -0,0 +1,147 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of Lamport channel messages: LamportMessage.toString and
+ * fromString, the JSON the handshake and the json codec use, and each
+ * LamportCodec writing a message and reading it back as a connection's listener
+ * does, with a LamportCodec.Reader. A CS_REQUEST carries no data, a CS_RELEASE a
+ * batch of seat changes.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LamportMessageBench {
+
+//****************************************************************
+//	State
+//****************************************************************
+
+	/**
+	 * A message of the given type
+	 */
+	@State(Scope.Thread)
+	public static class Message {
+		@Param({"CS_REQUEST", "CS_RELEASE"})
+		String type;
+
+		Object message;
+		String json;
+		MethodHandle toString;
+		MethodHandle fromString;
+
+		@Setup
+		public void setup() throws Throwable {
+			Object clock = ServerClasses.constructor("LogicalClock", int.class).invoke(12345);
+			if (type.equals("CS_REQUEST")) {
+				message = ServerClasses.method("LamportMessage", "REQUEST", int.class, String.class, int.class,
+						ServerClasses.type("LogicalClock"), int.class).invoke(1, "default", 0, clock, 678);
+			} else {
+				message = ServerClasses.method("LamportMessage", "RELEASE", int.class, String.class, int.class,
+						ServerClasses.type("LogicalClock"), int.class, String.class).invoke(1, "default", 0, clock, 678, seatChanges(8));
+			}
+			toString = ServerClasses.method("LamportMessage", "toString");
+			fromString = ServerClasses.method("LamportMessage", "fromString", String.class);
+			json = (String) toString.invoke(message);
+		}
+	}
+
+
+	/**
+	 * A codec, with a reusable stream to write to, and the message and a reader to
+	 * read it back with
+	 */
+	@State(Scope.Thread)
+	public static class Wire {
+		@Param({"JSON", "BINARY"})
+		String codec;
+
+		Object lamportCodec;
+		MethodHandle write;
+		MethodHandle read;
+		Object reader;
+		ByteArrayOutputStream bytes;
+		DataOutputStream out;
+		ByteArrayInputStream encoded;
+		DataInputStream in;
+
+		@Setup
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public void setup(Message m) throws Throwable {
+			lamportCodec = Enum.valueOf((Class) ServerClasses.type("LamportCodec"), codec);
+			write = ServerClasses.method("LamportCodec", "write", ServerClasses.type("LamportMessage"), DataOutputStream.class);
+			read = ServerClasses.method("LamportCodec", "read", DataInputStream.class, ServerClasses.type("LamportCodec$Reader"));
+			reader = ServerClasses.constructor("LamportCodec$Reader").invoke();
+			bytes = new ByteArrayOutputStream(4096);
+			out = new DataOutputStream(bytes);
+			write.invoke(lamportCodec, m.message, out);
+			out.flush();
+			encoded = new ByteArrayInputStream(bytes.toByteArray());
+			in = new DataInputStream(encoded);
+		}
+	}
+
+
+//****************************************************************
+//	Benchmarks
+//****************************************************************
+
+	@Benchmark
+	public Object messageToString(Message m) throws Throwable {
+		return m.toString.invoke(m.message);
+	}
+
+
+	@Benchmark
+	public Object messageFromString(Message m) throws Throwable {
+		return m.fromString.invoke(m.json);
+	}
+
+
+	@Benchmark
+	public int codecWrite(Message m, Wire w) throws Throwable {
+		w.bytes.reset();
+		w.write.invoke(w.lamportCodec, m.message, w.out);
+		w.out.flush();
+		return w.bytes.size();
+	}
+
+
+	@Benchmark
+	public Object codecRead(Wire w) throws Throwable {
+		w.encoded.reset();
+		return w.read.invoke(w.lamportCodec, w.in, w.reader);
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * The data of a CS_RELEASE for a batch of n reservations
+	 */
+	private static String seatChanges(int n) throws Throwable {
+		List<Object> changes = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			changes.add(ServerClasses.constructor("SeatChange", int.class, int.class, String.class).invoke(100 + i, 1, "customer" + i));
+		return (String) ServerClasses.method("SeatChange", "toJson", List.class).invoke(changes);
+	}
+
+}
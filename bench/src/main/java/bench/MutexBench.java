@@ -0,0 +1,79 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One entry into and exit from the critical section of a partition, through
+ * DistributedMutex.requestCriticalSection and releaseCS, on one server of an
+ * in-process cluster whose other servers are reached over loopback sockets.
+ * Nothing changes in the CS, so the release carries no seats.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MutexBench {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	@Param({"lamport", "ricart_agrawala", "suzuki_kasami"})
+	String mutex;
+
+	@Param({"3"})
+	int servers;
+
+	private Closeable cluster;
+	private Object distributedMutex;
+	private MethodHandle requestCriticalSection;
+	private MethodHandle releaseCS;
+
+
+//****************************************************************
+//	Setup
+//****************************************************************
+
+	@Setup
+	public void setup() throws Throwable {
+		cluster = ServerClasses.startCluster(servers, 1000, "mutex=" + mutex, "wal=off");
+		Object server = ServerClasses.servers(cluster).get(0);
+		Object inventory = ServerClasses.method("Server", "getInventory", String.class).invoke(server, "default");
+		List<?> mutexes = (List<?>) ServerClasses.method("EventInventory", "getMutexes").invoke(inventory);
+		distributedMutex = mutexes.get(0);
+		requestCriticalSection = ServerClasses.method("DistributedMutex", "requestCriticalSection");
+		releaseCS = ServerClasses.method("DistributedMutex", "releaseCS", int.class, List.class);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cluster.close();
+	}
+
+
+//****************************************************************
+//	Benchmarks
+//****************************************************************
+
+	@Benchmark
+	public long enterAndRelease() throws Throwable {
+		int requestID = (int) requestCriticalSection.invoke(distributedMutex);
+		return (long) releaseCS.invoke(distributedMutex, requestID, Collections.emptyList());
+	}
+
+}
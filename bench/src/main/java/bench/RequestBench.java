@@ -0,0 +1,118 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server.processRequest for every kind of request, on a server of an in-process
+ * cluster, from the request map to the response map. A reservation must be
+ * deleted again to be repeatable, so the RESERVE and BOOKSEAT benchmarks each
+ * time one request and the DELETE that undoes it; deleteMissing times a DELETE
+ * that finds nothing, and search a SEARCH for a name that is booked.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestBench {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	@Param({"1", "3"})
+	int servers;
+
+	@Param({"lamport"})
+	String mutex;
+
+	private Closeable cluster;
+	private Object server;
+	private MethodHandle processRequest;
+	private int nextName;
+
+
+//****************************************************************
+//	Setup
+//****************************************************************
+
+	@Setup
+	public void setup() throws Throwable {
+		cluster = ServerClasses.startCluster(servers, 1000, "mutex=" + mutex, "wal=off");
+		server = ServerClasses.servers(cluster).get(0);
+		processRequest = ServerClasses.method("Server", "processRequest", Map.class);
+		process("RESERVE", "booked", null);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cluster.close();
+	}
+
+
+//****************************************************************
+//	Benchmarks
+//****************************************************************
+
+	@Benchmark
+	public Object reserveAndDelete() throws Throwable {
+		String name = "customer" + nextName++;
+		process("RESERVE", name, null);
+		return process("DELETE", name, null);
+	}
+
+
+	@Benchmark
+	public Object bookSeatAndDelete() throws Throwable {
+		String name = "customer" + nextName++;
+		process("BOOKSEAT", name, "500");
+		return process("DELETE", name, null);
+	}
+
+
+	@Benchmark
+	public Object search() throws Throwable {
+		return process("SEARCH", "booked", null);
+	}
+
+
+	@Benchmark
+	public Object deleteMissing() throws Throwable {
+		return process("DELETE", "nobody", null);
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Process one request the way a client connection does
+	 */
+	private Object process(String request, String name, String seat) throws Throwable {
+		Map<String, String> received = new HashMap<>();
+		received.put("REQUEST", request);
+		received.put("NAME", name);
+		if (seat != null)
+			received.put("SEATNUM", seat);
+		Object response = processRequest.invoke(server, received);
+		if (response == null)
+			throw new IllegalStateException(request + " failed");
+		return response;
+	}
+
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending the seats of an event to another server, as in a snapshot catch-up:
+ * serialize takes a snapshot of a full seat store and writes it as JSON, sync
+ * reads that JSON and applies it to an empty store, as a server catching up from
+ * nothing does. The seat data used to be serialized whole by Server.serializeData
+ * and syncData; this is the code that replaced them.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SeatDataBench {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	@Param({"100", "10000", "1000000"})
+	int seats;
+
+	private Object store;
+	private String json;
+	private MethodHandle newStore;
+	private MethodHandle snapshot;
+	private MethodHandle applyAll;
+	private MethodHandle toJson;
+	private MethodHandle fromJson;
+
+
+//****************************************************************
+//	Setup
+//****************************************************************
+
+	/**
+	 * A store with every seat taken
+	 */
+	@Setup
+	public void setup() throws Throwable {
+		newStore = ServerClasses.constructor("HeapSeatStore", int.class);
+		snapshot = ServerClasses.method("HeapSeatStore", "snapshot");
+		applyAll = ServerClasses.method("HeapSeatStore", "applyAll", List.class);
+		toJson = ServerClasses.method("SeatChange", "toJson", List.class);
+		fromJson = ServerClasses.method("SeatChange", "fromJson", String.class);
+
+		store = newStore.invoke(seats);
+		MethodHandle assign = ServerClasses.method("HeapSeatStore", "assign", int.class, String.class);
+		for (int seat = 0; seat < seats; seat++)
+			assign.invoke(store, seat, "customer" + seat);
+		json = (String) serialize();
+	}
+
+
+//****************************************************************
+//	Benchmarks
+//****************************************************************
+
+	@Benchmark
+	public Object serialize() throws Throwable {
+		return toJson.invoke(snapshot.invoke(store));
+	}
+
+
+	@Benchmark
+	public Object sync() throws Throwable {
+		Object replica = newStore.invoke(seats);
+		applyAll.invoke(replica, fromJson.invoke(json));
+		return replica;
+	}
+
+}
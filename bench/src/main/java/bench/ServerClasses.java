@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Access to the server classes. They are in the default package, which a
+ * benchmark package cannot import, so they are reached by reflection. Hot calls
+ * go through MethodHandles adapted to Object, which the JIT inlines like a
+ * direct call.
+ */
+final class ServerClasses {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * A server class by its name
+	 */
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Server class " + name + " is missing from the benchmark jar", e);
+		}
+	}
+
+
+	/**
+	 * A method of any access, taking and returning Object in place of server types.
+	 * An instance method takes the instance first.
+	 */
+	static MethodHandle method(String className, String name, Class<?>... parameters) throws ReflectiveOperationException {
+		Method m = type(className).getDeclaredMethod(name, parameters);
+		m.setAccessible(true);
+		return generic(LOOKUP.unreflect(m));
+	}
+
+
+	/**
+	 * A public constructor, returning Object
+	 */
+	static MethodHandle constructor(String className, Class<?>... parameters) throws ReflectiveOperationException {
+		return generic(LOOKUP.unreflectConstructor(type(className).getConstructor(parameters)));
+	}
+
+
+	/**
+	 * Start a LocalCluster of nServers servers, on free loopback ports, each with the
+	 * given key=value options, and wait until they are all connected. Server
+	 * logging is turned down to warnings once they are up. Closing the cluster
+	 * shuts the servers down and deletes their files.
+	 */
+	static Closeable startCluster(int nServers, int nSeats, String... options) throws Throwable {
+		Object cluster = constructor("LocalCluster", int.class, int.class, List.class)
+				.invoke(nServers, nSeats, Arrays.asList(options));
+		method("LocalCluster", "setLogLevel", Level.class).invoke(cluster, Level.WARNING);
+		return (Closeable) cluster;
+	}
+
+
+	/**
+	 * The servers of a LocalCluster, in order of server ID
+	 */
+	static List<Object> servers(Closeable cluster) throws Throwable {
+		return new ArrayList<>((List<?>) method("LocalCluster", "getServers").invoke(cluster));
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private ServerClasses() {
+	}
+
+
+	/**
+	 * Every parameter and the return type as Object, except primitives
+	 */
+	private static MethodHandle generic(MethodHandle h) {
+		MethodType type = h.type();
+		for (int i = 0; i < type.parameterCount(); i++)
+			if (!type.parameterType(i).isPrimitive())
+				type = type.changeParameterType(i, Object.class);
+		if (!type.returnType().isPrimitive())
+			type = type.changeReturnType(Object.class);
+		return h.asType(type);
+	}
+
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for programs rather than people: every request returns at once with
+ * a future of the server's response, so many requests can be in flight on one
+ * connection. Each request is sent with an ID, which the server puts back in its
+ * response, and responses are matched to requests by ID in whatever order they
+ * arrive. Safe to use from any number of threads.
+ * <p>
+ * There is no failover: if the connection is lost, the requests in flight and
+ * every later one fail with an IOException, and the caller may connect again to
+ * another server.
+ */
+public class AsyncClient implements Closeable {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private final Socket socket;
+	private final OutputStream out;
+	private final BufferedReader in;
+	private final String event;
+	private final AtomicLong nextID = new AtomicLong();
+	private final ConcurrentSkipListMap<Long, CompletableFuture<Map<String, String>>> pending = new ConcurrentSkipListMap<>();
+	private volatile IOException failure;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Connect to a server
+	 *
+	 * @param event	event the requests apply to, or null for the default event
+	 */
+	public AsyncClient(InetSocketAddress server, String event) throws IOException {
+		this.event = event;
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(server, Client.TIMEOUT);
+		out = new BufferedOutputStream(socket.getOutputStream());
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "AsyncClient-" + socket.getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+
+	public AsyncClient(String host, int port) throws IOException {
+		this(new InetSocketAddress(host, port), null);
+	}
+
+
+	public CompletableFuture<Map<String, String>> reserve(String name) {
+		return send(request(Requests.RESERVE, name));
+	}
+
+
+	public CompletableFuture<Map<String, String>> bookSeat(String name, int seatNum) {
+		Map<String, String> reqMap = request(Requests.BOOKSEAT, name);
+		reqMap.put(MessageFields.SEATNUM.toString(), "" + seatNum);
+		return send(reqMap);
+	}
+
+
+	public CompletableFuture<Map<String, String>> search(String name) {
+		return send(request(Requests.SEARCH, name));
+	}
+
+
+	public CompletableFuture<Map<String, String>> delete(String name) {
+		return send(request(Requests.DELETE, name));
+	}
+
+
+	/**
+	 * Send any request. It is given the next ID, replacing an ID it may have, and
+	 * the future completes with the response, whose MESSAGE is what Client prints.
+	 */
+	public CompletableFuture<Map<String, String>> send(Map<String, String> reqMap) {
+		CompletableFuture<Map<String, String>> response = new CompletableFuture<>();
+		long id = nextID.incrementAndGet();
+		Map<String, String> request = new HashMap<>(reqMap);
+		request.put(MessageFields.ID.toString(), "" + id);
+		pending.put(id, response);
+		try {
+			synchronized (out) {
+				if (failure != null)
+					throw failure;
+				JsonCodec.writeLine(request, out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+		return response;
+	}
+
+
+	/**
+	 * Number of requests sent and not yet answered
+	 */
+	public int getInFlight() {
+		return pending.size();
+	}
+
+
+	/**
+	 * Close the connection. Requests still in flight fail.
+	 */
+	@Override
+	public void close() {
+		fail(new IOException("Client closed"));
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private Map<String, String> request(Requests type, String name) {
+		Map<String, String> reqMap = new HashMap<>();
+		reqMap.put(MessageFields.REQUEST.toString(), type.toString());
+		reqMap.put(MessageFields.NAME.toString(), name);
+		if (event != null)
+			reqMap.put(MessageFields.EVENT.toString(), event);
+		return reqMap;
+	}
+
+
+	/**
+	 * Complete requests as their responses arrive. A response without an ID, from
+	 * a server that does not know IDs and so answers in order, goes to the oldest
+	 * request.
+	 */
+	private void readLoop() {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				Map<String, String> respMap = JsonCodec.readStringMap(line);
+				String id = respMap.remove(MessageFields.ID.toString());
+				Map.Entry<Long, CompletableFuture<Map<String, String>>> entry;
+				CompletableFuture<Map<String, String>> response = null;
+				if (id != null)
+					response = pending.remove(Long.parseLong(id));
+				else if ((entry = pending.pollFirstEntry()) != null)
+					response = entry.getValue();
+				if (response != null)
+					response.complete(respMap);
+			}
+			fail(new IOException("Server closed the connection"));
+		} catch (IOException | NumberFormatException e) {
+			fail(e instanceof IOException ? (IOException) e : new IOException("Bad response: " + e.getMessage(), e));
+		}
+	}
+
+
+	/**
+	 * Close the connection, if it is not already, and fail every request in flight
+	 */
+	private void fail(IOException e) {
+		synchronized (this) {
+			if (failure == null)
+				failure = e;
+		}
+		try {
+			socket.close();
+		} catch (IOException closeFailed) {
+			// already failing
+		}
+		Map.Entry<Long, CompletableFuture<Map<String, String>>> entry;
+		while ((entry = pending.pollFirstEntry()) != null)
+			entry.getValue().completeExceptionally(failure);
+	}
+
+}
@@ -0,0 +1,221 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that takes records off the logging thread. Records go into a
+ * bounded ring buffer, and a writer thread formats whatever has piled up since
+ * its last write into a log file, and to the console at or above the console
+ * level, with one flush per batch instead of one per record.
+ * <p>
+ * Records name their logger rather than the class and method that logged them:
+ * finding the caller means walking the logging thread's stack for every record.
+ * <p>
+ * When the buffer is full, records below WARNING are dropped rather than holding
+ * up the server, and the number dropped is logged once there is room again;
+ * warnings and errors wait for room.
+ */
+public class AsyncLogHandler extends Handler {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final int MAX_BATCH = 256;
+	private static final long CLOSE_MILLIS = 1000;
+
+	private final BlockingQueue<LogRecord> buffer;
+	private final Writer file;
+	private final Writer console;
+	private final Level consoleLevel;
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Start a handler writing to the given file, which is replaced, and echoing
+	 * records at or above consoleLevel to standard error
+	 *
+	 * @param capacity most records buffered before records below WARNING are dropped
+	 */
+	public AsyncLogHandler(File logFile, Level consoleLevel, int capacity, String threadName) throws IOException {
+		this.consoleLevel = consoleLevel;
+		buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile), StandardCharsets.UTF_8));
+		console = new BufferedWriter(new OutputStreamWriter(System.err));
+		setFormatter(new RecordFormatter());
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		}, threadName);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record))
+			return;
+		if (buffer.offer(record)) {
+			queued.incrementAndGet();
+			return;
+		}
+		if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		try {
+			buffer.put(record);
+			queued.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Wait until every record published so far has been written
+	 */
+	@Override
+	public void flush() {
+		long target = queued.get();
+		while (written.get() < target && writer.isAlive()) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Write out what is buffered, then stop the writer and close the file
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(CLOSE_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			reportError("Failed to close log file", e, ErrorManager.CLOSE_FAILURE);
+		}
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Write buffered records, a batch per flush, until closed
+	 */
+	private void writerLoop() {
+		List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while (true) {
+				batch.add(buffer.take());
+				buffer.drainTo(batch, MAX_BATCH - 1);
+				boolean toConsole = false;
+				for (LogRecord record : batch) {
+					String text = format(record);
+					file.write(text);
+					if (record.getLevel().intValue() >= consoleLevel.intValue()) {
+						console.write(text);
+						toConsole = true;
+					}
+				}
+				long lost = dropped.getAndSet(0);
+				if (lost > 0) {
+					LogRecord record = new LogRecord(Level.WARNING, lost + " log records dropped: the log buffer is full");
+					record.setLoggerName(getClass().getName());
+					String text = format(record);
+					file.write(text);
+					console.write(text);
+					toConsole = true;
+				}
+				file.flush();
+				if (toConsole)
+					console.flush();
+				written.addAndGet(batch.size());
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			reportError("Failed to write log file", e, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+
+	private String format(LogRecord record) {
+		try {
+			return getFormatter().format(record);
+		} catch (RuntimeException e) {
+			return record.getLevel() + ": " + record.getMessage() + System.lineSeparator();
+		}
+	}
+
+
+	/**
+	 * SimpleFormatter's layout with the logger name in place of the source, which
+	 * is never asked for
+	 */
+	private static class RecordFormatter extends Formatter {
+
+		@Override
+		public String format(LogRecord record) {
+			String thrown = "";
+			if (record.getThrown() != null) {
+				StringWriter trace = new StringWriter();
+				PrintWriter out = new PrintWriter(trace);
+				out.println();
+				record.getThrown().printStackTrace(out);
+				out.close();
+				thrown = trace.toString();
+			}
+			return String.format("%1$tb %1$td, %1$tY %1$tl:%1$tM:%1$tS %1$Tp %2$s%n%3$s: %4$s%5$s%n",
+					new Date(record.getMillis()), record.getLoggerName(), record.getLevel().getLocalizedName(),
+					formatMessage(record), thrown);
+		}
+
+	}
+
+}
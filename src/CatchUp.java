@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The catch-up part of the INIT handshake. The connecting server sends the
+ * operations it has applied (see OperationHistory) and the digest of each event.
+ * The accepting server answers with just the operations the other one is
+ * missing. If it no longer keeps all of them, it answers with its applied
+ * operations instead, and after the handshake streams the events whose digest
+ * differs in INIT_DATA chunks, ending with INIT_DONE.
+ */
+public class CatchUp {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private String peerStream;
+	private List<OperationHistory.Operation> operations;
+	private Map<String, TreeMap<Integer, Integer>> snapshotApplied;
+	private Map<String, Long> peerDigests;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * The INIT_REQUEST data of a connecting server:
+	 * {"stream":..., "applied":{stream:[[first,last],...]}, "digests":{event:digest}}
+	 */
+	public static String request(Server server) throws IOException {
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			gen.writeStartObject();
+			gen.writeStringField("stream", server.getHistory().getLocalStream());
+			gen.writeFieldName("applied");
+			OperationHistory.writeApplied(gen, server.getHistory().getApplied());
+			gen.writeObjectFieldStart("digests");
+			for (EventInventory inventory : server.getInventories())
+				gen.writeNumberField(inventory.getID(), inventory.digest());
+			gen.writeEndObject();
+			gen.writeEndObject();
+		}
+		return out.toString();
+	}
+
+
+	/**
+	 * Work out the answer to a connecting server's INIT_REQUEST data
+	 */
+	public static CatchUp answer(Server server, String requestData) throws IOException {
+		CatchUp catchUp = new CatchUp();
+		Map<String, TreeMap<Integer, Integer>> peerApplied = Collections.emptyMap();
+		catchUp.peerDigests = new HashMap<>();
+
+		try (JsonParser parser = JsonCodec.factory().createParser(requestData)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Expected a catch-up request");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("stream"))
+					catchUp.peerStream = parser.getValueAsString();
+				else if (field.equals("applied"))
+					peerApplied = OperationHistory.readApplied(parser);
+				else if (field.equals("digests"))
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String eventID = parser.getCurrentName();
+						parser.nextToken();
+						catchUp.peerDigests.put(eventID, parser.getLongValue());
+					}
+				else
+					parser.skipChildren();
+			}
+		}
+
+		// the applied ranges go first: the snapshot read later can only be newer
+		OperationHistory history = server.getHistory();
+		catchUp.operations = history.missingFrom(peerApplied);
+		if (catchUp.operations == null)
+			catchUp.snapshotApplied = history.getApplied();
+		return catchUp;
+	}
+
+
+	/**
+	 * Read the INIT_RESPOND data of the accepting server, applying any operations
+	 * in it
+	 */
+	public static CatchUp received(Server server, String responseData) throws IOException {
+		CatchUp catchUp = new CatchUp();
+		try (JsonParser parser = JsonCodec.factory().createParser(responseData)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Expected a catch-up response");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("stream"))
+					catchUp.peerStream = parser.getValueAsString();
+				else if (field.equals("applied"))
+					catchUp.snapshotApplied = OperationHistory.readApplied(parser);
+				else if (field.equals("operations")) {
+					catchUp.operations = new ArrayList<>();
+					while (parser.nextToken() == JsonToken.START_ARRAY)
+						catchUp.operations.add(OperationHistory.Operation.read(parser));
+				} else
+					parser.skipChildren();
+			}
+		}
+
+		if (catchUp.operations != null)
+			for (OperationHistory.Operation op : catchUp.operations)
+				server.getInventory(op.eventID).applyOperation(op.stream, op.index, op.changes);
+		return catchUp;
+	}
+
+
+	/**
+	 * The INIT_RESPOND data: {"stream":..., "operations":[...]}, or
+	 * {"stream":..., "applied":{...}} if a snapshot follows
+	 */
+	public String response(Server server) throws IOException {
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			gen.writeStartObject();
+			gen.writeStringField("stream", server.getHistory().getLocalStream());
+			if (operations != null) {
+				gen.writeArrayFieldStart("operations");
+				for (OperationHistory.Operation op : operations)
+					op.write(gen);
+				gen.writeEndArray();
+			} else {
+				gen.writeFieldName("applied");
+				OperationHistory.writeApplied(gen, snapshotApplied);
+			}
+			gen.writeEndObject();
+		}
+		return out.toString();
+	}
+
+
+	/**
+	 * Stream name of the other server's own operations
+	 */
+	public String getPeerStream() {
+		return peerStream;
+	}
+
+
+	/**
+	 * True if the missing operations were no longer all kept, so a snapshot is sent
+	 */
+	public boolean needsSnapshot() {
+		return operations == null;
+	}
+
+
+	/**
+	 * Number of operations sent, or -1 for a snapshot
+	 */
+	public int size() {
+		return operations == null ? -1 : operations.size();
+	}
+
+
+	/**
+	 * The events to send in a snapshot: those whose digest differs from the other
+	 * server's, leaving out events neither server has changed
+	 */
+	public List<EventInventory> snapshotEvents(Server server) {
+		List<EventInventory> events = new ArrayList<>();
+		for (EventInventory inventory : server.getInventories()) {
+			Long peerDigest = peerDigests.get(inventory.getID());
+			if (inventory.digest() != (peerDigest == null ? 0L : peerDigest))
+				events.add(inventory);
+		}
+		return events;
+	}
+
+
+	/**
+	 * Once every snapshot chunk has been applied, count the operations the
+	 * snapshot covered as applied here too
+	 */
+	public void finish(Server server) {
+		if (snapshotApplied != null)
+			server.getHistory().merge(snapshotApplied);
+	}
+
+}
@@ -16,10 +16,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 public class Client {
 		
 //****************************************************************
@@ -34,6 +30,7 @@ public class Client {
 	private List<InetAddress> servers;
 	private List<Integer> ports;
 	private List<String> commands;
+	private String event;
 	
 	
 //****************************************************************
@@ -84,12 +81,10 @@ public class Client {
 	 * Send a JSON formatted request to the server
 	 */
 	protected void sendRequest(Map<String, String> reqMap) {
-		ObjectMapper mapper = new ObjectMapper();
 		try {
-			String jsonRequest = mapper.writer().writeValueAsString(reqMap);
-			out.println(jsonRequest);
+			JsonCodec.writeLine(reqMap, out);
 			out.flush();
-		} catch (JsonProcessingException e1) {
+		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
 	}
@@ -104,11 +99,7 @@ public class Client {
 			if( recString == null)
 				return null;
 			
-			ObjectMapper mapper = new ObjectMapper();
-			TypeReference<HashMap<String, String>> typeRef 
-			  = new TypeReference<HashMap<String, String>>() {};
-			  
-			  return mapper.readValue(recString, typeRef);
+			return JsonCodec.readStringMap(recString);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -189,7 +180,15 @@ public class Client {
 		String[] tokens = command.split(" ");
 		Map<String, String> reqMap = new HashMap<>();
 
-		if (tokens[0].equals("reserve")){
+		if (tokens[0].equals("event")){
+			if(tokens.length<2){
+				return "NOTE: not enough tokens in event string";
+			}
+			event = tokens[1];
+			return "Commands now apply to event " + event;
+		}
+		
+		else if (tokens[0].equals("reserve")){
 			if(tokens.length<2){
 				return "NOTE: not enough tokens in reserve string";
 			}
@@ -227,6 +226,8 @@ public class Client {
 			return "ERROR: No such command";
 		}
 		
+		if (event != null)
+			reqMap.put(MessageFields.EVENT.toString(), event);
 		sendRequest(reqMap);
 		Map<String, String> response = receiveResponse();
 		
@@ -0,0 +1,102 @@
+import java.util.List;
+
+/**
+ * Mutual exclusion for one seat partition of one event, across all servers. The
+ * seat changes made in the CS go out with the release, so every server's replica
+ * has them before the next holder enters. Which algorithm is used is chosen with
+ * MutexAlgorithm, and must be the same on every server.
+ * <p>
+ * Entering the CS of several partitions together is done by EventInventory in two
+ * steps, sendRequest on each partition and then awaitCS on each in partition order,
+ * so no algorithm needs to know about the other partitions.
+ */
+public interface DistributedMutex {
+
+	/**
+	 * Request the CS, blocking until it is granted
+	 *
+	 * @return the ID of the granted request, to be passed to releaseCS
+	 */
+	int requestCriticalSection();
+
+
+	/**
+	 * Release the CS held by the given request and send the seat changes made in
+	 * the CS to other servers
+	 *
+	 * @return the write-ahead log sequence number of the changes, for Server.awaitDurable
+	 */
+	long releaseCS(int requestID, List<SeatChange> changes);
+
+
+	/**
+	 * The seat partition this mutex guards
+	 */
+	int getPartition();
+
+
+	/**
+	 * Number of CS requests known here that are waiting for the CS or in it
+	 */
+	int getQueueDepth();
+
+
+	/**
+	 * Current value of the logical clock
+	 */
+	int currentTime();
+
+
+	/**
+	 * Make a request for the CS with the given timestamp and ID, without waiting for
+	 * it. The timestamp must not be behind currentTime() -- must hold lock
+	 *
+	 * @return the request, to be passed to awaitCS
+	 */
+	LamportMessage sendRequest(int timestamp, int requestID);
+
+
+	/**
+	 * Block until the CS is granted to a request made with sendRequest
+	 */
+	void awaitCS(LamportMessage request);
+
+
+	/**
+	 * Leave the CS held by the given request, sending the seat changes made in it
+	 * as JSON, or NO_DATA if there were none. The operation must have been recorded
+	 * already.
+	 */
+	void release(int requestID, String data);
+
+
+	/**
+	 * Process a message of this partition received from another server. The
+	 * listener may decode its next message into lm, so a message kept after this
+	 * returns must be a copy.
+	 */
+	void processMessage(LamportMessage lm);
+
+
+	/**
+	 * Hold off all message processing and sending for this partition
+	 */
+	void lock();
+
+
+	void unlock();
+
+
+	/**
+	 * Bring a server that just connected up to date with our requests -- must hold lock
+	 */
+	void resendRequests(int otherServerID);
+
+
+	/**
+	 * Forget what a server that is gone asked for, and wake up waiters that no
+	 * longer need to hear from it
+	 */
+	void peerLost(int otherServerID);
+
+}
@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The seats of one event, with the mutexes of its partitions and the batcher
+ * that takes its requests through the CS. Events are independent: requests for
+ * different events never wait for each other.
+ */
+public class EventInventory {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	public static final String DEFAULT_EVENT = "default";
+
+	private String eventID;
+	private Server server;
+	private Logger log;
+	private PeerNetwork network;
+	private int nSeats;
+	private int partitions;
+	private SeatStore seatAssignments;
+	private List<DistributedMutex> mutexes;
+	private RequestBatcher batcher;
+
+
+//****************************************************************
+//	Public methods
+//****************************************************************
+
+	/**
+	 * Constructor -- all seats start out free
+	 */
+	public EventInventory(String eventID, Server server, PeerNetwork network, int nSeats, int partitions) {
+		this.eventID = eventID;
+		this.server = server;
+		this.log = server.getLogger("batch");
+		this.network = network;
+		this.nSeats = nSeats;
+		this.partitions = partitions;
+		seatAssignments = server.newSeatStore(eventID, nSeats);
+
+		List<DistributedMutex> partitionMutexes = new ArrayList<>(partitions);
+		for (int p = 0; p < partitions; p++)
+			partitionMutexes.add(server.getMutexAlgorithm().newMutex(network, server, this, p));
+		mutexes = Collections.unmodifiableList(partitionMutexes);
+
+		batcher = new RequestBatcher(server, this, server.getBatchWorkers(), server.getIntOption("batch.size", 32),
+				server.getIntOption("batch.linger", 0));
+	}
+
+
+	public String getID(){
+		return eventID;
+	}
+
+
+	/**
+	 * The mutex of every partition, indexed by partition
+	 */
+	public List<DistributedMutex> getMutexes(){
+		return mutexes;
+	}
+
+
+	/**
+	 * Number of seat partitions, each guarded by its own DistributedMutex 
+	 */
+	public int getPartitions(){
+		return partitions;
+	}
+
+	
+	/**
+	 * Partition that owns the given seat (0-based). Each partition is a contiguous
+	 * range of seats. 
+	 */
+	public int partitionOf(int seat){
+		return (int) ((long) seat * partitions / nSeats);
+	}
+
+	
+	/**
+	 * Partition that owns the given name. Looking up or changing the seat held by
+	 * a name needs this partition, wherever the seat itself is. 
+	 */
+	public int homePartition(String name){
+		return name==null ? 0 : (name.hashCode() & 0x7fffffff) % partitions;
+	}
+
+	/**
+	 * Queue a request for the next batch of this event  
+	 */
+	public CompletableFuture<Map<String, String>> submit(Map<String, String> receivedMap){
+		return batcher.submit(receivedMap);
+	}
+
+
+	/**
+	 * Block until every CS request on the name's home partition that is ordered
+	 * before now has been applied. Returns at once if the mutexes do not implement
+	 * OrderedReads, in which case the server sends reads through the CS instead.
+	 */
+	public void awaitApplied(String name){
+		DistributedMutex mutex = mutexes.get(homePartition(name));
+		if (mutex instanceof OrderedReads)
+			((OrderedReads) mutex).awaitAppliedBefore(mutex.currentTime());
+	}
+
+
+	/**
+	 * Request the CS of several partitions together, blocking until all of them are
+	 * granted. The request made on each partition has the same timestamp and request
+	 * ID, so every partition orders multi-partition requests the same way, and two
+	 * of them can never wait for each other in a cycle. All requests go out before
+	 * waiting, so the partitions are granted in parallel. They are waited for in
+	 * partition order, which keeps token-based mutexes out of cycles as well.
+	 * 
+	 * @return the ID of the granted request, to be passed to releaseCriticalSections
+	 */
+	public int requestCriticalSections(BitSet partitions){
+		LamportMessage[] requests = new LamportMessage[mutexes.size()];
+		
+		// hold every partition's lock while picking the timestamp, so it is at least
+		// the clock of each partition when its request goes out
+		for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1))
+			mutexes.get(p).lock();
+		try {
+			int timestamp = 0;
+			for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1))
+				timestamp = Math.max(timestamp, mutexes.get(p).currentTime());
+			int requestID = network.nextRequestID();
+			for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1))
+				requests[p] = mutexes.get(p).sendRequest(timestamp, requestID);
+		} finally {
+			for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1))
+				mutexes.get(p).unlock();
+		}
+		
+		int requestID = -1;
+		for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1)){
+			mutexes.get(p).awaitCS(requests[p]);
+			requestID = requests[p].requestID;
+		}
+		return requestID;
+	}
+	
+	
+	/**
+	 * Release the CS of several partitions, entered with requestCriticalSections,
+	 * and send the seat changes made in the CS to other servers. Every partition's
+	 * release carries all of them: the next holder of any of these partitions may
+	 * read a name or seat changed here, and replicas skip repeated changes.
+	 * 
+	 * @return the write-ahead log sequence number of the changes, for Server.awaitDurable
+	 */
+	public long releaseCriticalSections(BitSet partitions, int requestID, List<SeatChange> changes){
+		String data = LamportMessage.NO_DATA;
+		if (!changes.isEmpty()){
+			try {
+				data = SeatChange.toJson(changes);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Failed to serialize seat changes " + changes, e);
+			}
+		}
+		
+		// the request is an operation of our own stream, whether it changed anything or not
+		long logSeq = server.recordOperation(server.getHistory().getLocalStream(), requestID, eventID, changes);
+		for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p+1))
+			mutexes.get(p).release(requestID, data);
+		return logSeq;
+	}
+
+
+	/**
+	 * Every seat with its name and version
+	 */
+	public List<SeatChange> snapshot(){
+		return seatAssignments.snapshot();
+	}
+
+
+//****************************************************************
+//	Protected methods
+//****************************************************************
+
+	/**
+	 *	Apply an operation of another server: the seat changes it made in a CS, as
+	 *	JSON, or NO_DATA if it changed nothing 
+	 */
+	protected void applyOperation(String stream, int index, String changes){
+		long start = System.nanoTime();
+		try {
+			applyOperation(stream, index, LamportMessage.NO_DATA.equals(changes)
+					? Collections.<SeatChange>emptyList() : SeatChange.fromJson(changes));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		server.getMetrics().releaseApplied(start);
+	}
+
+
+	/**
+	 *	Apply an operation of another server, and log it unless it was applied before 
+	 */
+	protected void applyOperation(String stream, int index, List<SeatChange> changes){
+		seatAssignments.applyAll(changes);
+		server.recordOperation(stream, index, eventID, changes);
+		if (log.isLoggable(Level.FINE))
+			log.fine("Applied operation " + stream + "/" + index + " to event " + eventID + ": " + changes);
+	}
+
+
+	/**
+	 *	Apply seat changes from another server's snapshot, and log them 
+	 */
+	protected void applyChanges(List<SeatChange> changes){
+		seatAssignments.applyAll(changes);
+		server.logChanges(eventID, changes);
+		if (log.isLoggable(Level.FINE))
+			log.fine("Applied seat changes to event " + eventID + ": " + changes);
+	}
+
+
+	/**
+	 *	Apply seat changes read back from the write-ahead log, without logging them again 
+	 */
+	protected void restoreChanges(List<SeatChange> changes){
+		seatAssignments.applyAll(changes);
+	}
+
+
+	/**
+	 * Summary of every seat and version, equal on two replicas holding the same
+	 * seats. 0 for an event with no seat ever taken. 
+	 */
+	protected long digest(){
+		return seatAssignments.digest();
+	}
+
+
+	/**
+	 * Close the seat store, after which the event must not be used 
+	 */
+	protected void close(){
+		seatAssignments.close();
+	}
+
+
+	/**
+	 * Partitions a request is expected to need, judging by the local replica. The
+	 * request may turn out to need others once inside the CS, e.g. if its free
+	 * seat was taken in the meantime; applyRequest then defers it.
+	 */
+	protected BitSet partitionsFor(Map<String, String> receivedMap) {
+		BitSet needed = new BitSet(partitions);
+		String name = receivedMap.get(MessageFields.NAME.toString());
+		String requestType = receivedMap.get(MessageFields.REQUEST.toString());
+		needed.set(homePartition(name));
+		
+		if (Requests.RESERVE.toString().equals(requestType)) {
+			if (seatAssignments.seatOf(name) == -1) {
+				int nextSeat = nextFreeSeat(name, null);
+				if (nextSeat == -1)
+					needed.set(0, partitions); // only all partitions together can tell it is sold out
+				else
+					needed.set(partitionOf(nextSeat));
+			}
+		} else if (Requests.BOOKSEAT.toString().equals(requestType)) {
+			try {
+				int seatNum = Integer.parseInt(receivedMap.get(MessageFields.SEATNUM.toString()));
+				if (seatNum >= 1 && seatNum <= nSeats)
+					needed.set(partitionOf(seatNum - 1));
+			} catch (NumberFormatException e) {
+				// fails again in applyRequest
+			}
+		} else if (Requests.DELETE.toString().equals(requestType)) {
+			int reservedSeat = seatAssignments.seatOf(name);
+			if (reservedSeat >= 0)
+				needed.set(partitionOf(reservedSeat));
+		}
+		return needed;
+	}
+	
+	
+	/**
+	 * Apply a single request to the seat assignments. Must be called from inside the
+	 * CS of the held partitions, or with held==null for a read that changes nothing.
+	 * 
+	 * @param changes	collects the seat changes made, for the RELEASE
+	 * @return the response, or null if the request needs a partition that is not held 
+	 */
+	protected Map<String, String> applyRequest(Map<String, String> receivedMap, BitSet held, List<SeatChange> changes) {
+		
+		Map<String, String> response = new HashMap<>();
+		String message = "Meep Morp";
+		Requests requestType = null;
+		
+		try{
+			requestType = Requests.valueOf(receivedMap.get(MessageFields.REQUEST.toString()));
+			String name = receivedMap.get(MessageFields.NAME.toString());
+			int reservedSeat = seatAssignments.seatOf(name);
+	
+			if (requestType==Requests.RESERVE) {
+				if (reservedSeat >= 0)
+					message = "Seat already booked against name provided.";
+				else {
+					int nextSeat = nextFreeSeat(name, held);
+					if (nextSeat == -1 && held != null && held.cardinality() < partitions)
+						return null;
+					if (nextSeat == -1) {
+						message = "Sold out - no seat available.";
+						response.put(MessageFields.SEATNUM.toString(), "-1");
+					} else {
+						assignSeat(nextSeat, name, changes);
+						message = "Seat assigned to you is " + (nextSeat + 1);
+						response.put(MessageFields.SEATNUM.toString(), "" + (nextSeat + 1));
+					}
+				}
+	
+			} else if (requestType==Requests.BOOKSEAT) {
+				int seatNum = Integer.parseInt(receivedMap.get(MessageFields.SEATNUM.toString()));
+				if (seatNum < 1 || seatNum > nSeats)
+					message = "Seat " + seatNum + " is not available.";
+				else if (!holds(held, partitionOf(seatNum - 1)))
+					return null;
+				else if (reservedSeat == seatNum)
+					message = "Seat already booked against name provided.";
+				else if (reservedSeat >= 0) {
+					message = "Seat " + (reservedSeat + 1) + " is already booked against name " + name;
+					response.put(MessageFields.SEATNUM.toString(), "" + (reservedSeat + 1));
+				} else if (!seatAssignments.isFree(seatNum - 1)) {
+					message = "Seat " + seatNum + " is not available.";
+				} else {
+					assignSeat(seatNum - 1, name, changes);
+					message = "Seat assigned to you is " + (seatNum);
+					response.put(MessageFields.SEATNUM.toString(), "" + (seatNum));
+				}
+	
+			} else if (requestType==Requests.SEARCH) {
+				if (reservedSeat == -1) {
+					message = "No reservation found for " + name;
+					response.put(MessageFields.SEATNUM.toString(), "" + (-1));
+				} else {
+					message = "Reserved seat for " + name + " is " + (reservedSeat + 1);
+					response.put(MessageFields.SEATNUM.toString(), "" + (reservedSeat + 1));
+				}
+	
+			} else if (requestType==Requests.DELETE) {
+				if (reservedSeat == -1)
+					message = "No reservation found for " + name;
+				else if (!holds(held, partitionOf(reservedSeat)))
+					return null;
+				else {
+					message = "Reservation deleted for " + name;
+					assignSeat(reservedSeat, "", changes);
+				}
+			}
+
+		}catch(IllegalArgumentException e){
+			// bad requestType parsing...
+			message = "Invalid command";
+		}
+	
+		response.put(MessageFields.MESSAGE.toString(), message);
+
+		return response;
+	}
+
+
+//****************************************************************
+//	Private methods
+//****************************************************************
+
+	/**
+	 * Assign a seat, and remember the change for the RELEASE  
+	 */
+	private void assignSeat(int seat, String name, List<SeatChange> changes) {
+		changes.add(seatAssignments.assign(seat, name));
+	}
+	
+	
+	/**
+	 * A free seat for a name, or -1 if there is none. The name's home partition is
+	 * searched first, so reservations for different names spread over the partitions
+	 * instead of all contending for the lowest free seat. Only the held partitions
+	 * are searched, unless held==null.
+	 */
+	private int nextFreeSeat(String name, BitSet held) {
+		int home = homePartition(name);
+		for (int i = 0; i < partitions; i++) {
+			int p = (home + i) % partitions;
+			if (!holds(held, p))
+				continue;
+			int seat = seatAssignments.nextFreeSeat(firstSeat(p), firstSeat(p + 1));
+			if (seat != -1)
+				return seat;
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * First seat (0-based) of the given partition  
+	 */
+	private int firstSeat(int partition) {
+		return (int) (((long) partition * nSeats + partitions - 1) / partitions);
+	}
+	
+	
+	/**
+	 * True if the partition is held, or no partitions are being checked  
+	 */
+	private static boolean holds(BitSet held, int partition) {
+		return held == null || held.get(partition);
+	}
+
+}
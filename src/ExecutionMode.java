@@ -0,0 +1,78 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * How the server runs its blocking tasks: client connections, Lamport listener
+ * loops, and the request batcher. VIRTUAL needs a Java 21+ runtime; it is looked
+ * up reflectively so the code still builds and runs on older JDKs, where it falls
+ * back to PLATFORM.
+ */
+public enum ExecutionMode {
+	PLATFORM,
+	VIRTUAL;
+
+	private static final ThreadFactory virtualThreadFactory = lookupVirtualThreadFactory();
+
+
+	/**
+	 * True if this mode can run on the current JVM
+	 */
+	public boolean isSupported() {
+		return this == PLATFORM || virtualThreadFactory != null;
+	}
+
+
+	/**
+	 * Create a new, unstarted thread
+	 */
+	public Thread newThread(String name, Runnable task) {
+		Thread t = (this == VIRTUAL && virtualThreadFactory != null) ? virtualThreadFactory.newThread(task)
+				: new Thread(task);
+		t.setName(name);
+		return t;
+	}
+
+
+	/**
+	 * Create and start a new thread
+	 */
+	public Thread startThread(String name, Runnable task) {
+		Thread t = newThread(name, task);
+		t.start();
+		return t;
+	}
+
+
+	/**
+	 * Create an executor for short tasks. PLATFORM uses a fixed pool of nThreads;
+	 * VIRTUAL starts a new virtual thread per task, so nThreads is ignored.
+	 */
+	public ExecutorService newExecutor(int nThreads) {
+		if (this == VIRTUAL && virtualThreadFactory != null) {
+			try {
+				Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				return (ExecutorService) m.invoke(null, virtualThreadFactory);
+			} catch (ReflectiveOperationException e) {
+				// fall through to a platform pool
+			}
+		}
+		return Executors.newFixedThreadPool(Math.max(1, nThreads));
+	}
+
+
+	/**
+	 * Thread.ofVirtual().factory(), or null before Java 21
+	 */
+	private static ThreadFactory lookupVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Seat store on the Java heap: one String per seat, and a map from name to seat.
+ * Everything is lost when the process exits.
+ */
+public class HeapSeatStore implements SeatStore {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private String[] seats;
+	private Map<String, Integer> seatByName;
+	private int[] versions;
+	private long digest;
+	private BitSet takenSeats;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor -- all seats start out free
+	 */
+	public HeapSeatStore(int nSeats) {
+		seats = new String[nSeats];
+		for (int i = 0; i < nSeats; i++)
+			seats[i] = "";
+		versions = new int[nSeats];
+		seatByName = new HashMap<>();
+		takenSeats = new BitSet(nSeats);
+	}
+
+
+	@Override
+	public int size() {
+		return seats.length;
+	}
+
+
+	@Override
+	public String get(int seat) {
+		lock.readLock().lock();
+		try {
+			return seats[seat];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public boolean isFree(int seat) {
+		lock.readLock().lock();
+		try {
+			return !takenSeats.get(seat);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public int seatOf(String name) {
+		lock.readLock().lock();
+		try {
+			Integer seat = seatByName.get(name);
+			return seat==null ? -1 : seat;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public int nextFreeSeat() {
+		return nextFreeSeat(0, seats.length);
+	}
+
+
+	@Override
+	public int nextFreeSeat(int from, int to) {
+		lock.readLock().lock();
+		try {
+			int seat = takenSeats.nextClearBit(from);
+			return seat < Math.min(to, seats.length) ? seat : -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public SeatChange assign(int seat, String name) {
+		checkSeat(seat);
+		lock.writeLock().lock();
+		try {
+			assignUnlocked(seat, name);
+			setVersion(seat, versions[seat] + 1);
+			return new SeatChange(seat, versions[seat], name);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void applyAll(List<SeatChange> changes) {
+		for (SeatChange change : changes)
+			checkSeat(change.seat);
+		lock.writeLock().lock();
+		try {
+			for (SeatChange change : changes) {
+				if (change.version <= versions[change.seat])
+					continue;
+				assignUnlocked(change.seat, change.name);
+				setVersion(change.seat, change.version);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public List<SeatChange> snapshot() {
+		lock.readLock().lock();
+		try {
+			List<SeatChange> snapshot = new ArrayList<>();
+			for (int i = 0; i < seats.length; i++)
+				if (versions[i] > 0)
+					snapshot.add(new SeatChange(i, versions[i], seats[i]));
+			return snapshot;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public long digest() {
+		lock.readLock().lock();
+		try {
+			return digest;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public List<String> toList() {
+		lock.readLock().lock();
+		try {
+			List<String> list = new ArrayList<>(seats.length);
+			for (String name : seats)
+				list.add(name);
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+
+	@Override
+	public String toString() {
+		return toList().toString();
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private void checkSeat(int seat) {
+		if (seat < 0 || seat >= seats.length)
+			throw new IndexOutOfBoundsException("Seat " + seat + " of " + seats.length);
+	}
+
+
+	/**
+	 * Set the version of a seat and keep the digest in step -- must hold write lock
+	 */
+	private void setVersion(int seat, int version) {
+		digest += SeatStore.versionHash(seat, version) - SeatStore.versionHash(seat, versions[seat]);
+		versions[seat] = version;
+	}
+
+
+	/**
+	 * Assign a seat and keep the name index and taken bitmap in step -- must hold write lock
+	 */
+	private void assignUnlocked(int seat, String name) {
+		String oldName = seats[seat];
+		if (!oldName.isEmpty()) {
+			Integer indexed = seatByName.get(oldName);
+			if (indexed != null && indexed == seat)
+				seatByName.remove(oldName);
+		}
+
+		seats[seat] = name;
+		if (name.isEmpty()) {
+			takenSeats.clear(seat);
+		} else {
+			takenSeats.set(seat);
+			seatByName.put(name, seat);
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Shared JSON readers and writers for client requests, responses, seat data and
+ * LamportMessages. Jackson's ObjectMapper, ObjectReader and ObjectWriter are
+ * thread-safe once configured, so they are built once here instead of on every call.
+ */
+public final class JsonCodec {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+	private static final ObjectReader STRING_MAP_READER = MAPPER.readerFor(new TypeReference<HashMap<String, String>>() {
+	});
+	private static final ObjectWriter WRITER = MAPPER.writer();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * The factory for streaming JsonParsers and JsonGenerators. Generators it
+	 * creates do not close the underlying stream.
+	 */
+	public static JsonFactory factory() {
+		return MAPPER.getFactory();
+	}
+
+
+	/**
+	 * Parse a JSON object of strings, e.g. a client request or response
+	 */
+	public static Map<String, String> readStringMap(String json) throws IOException {
+		return STRING_MAP_READER.readValue(json);
+	}
+
+
+	/**
+	 * Serialize any value as a JSON string
+	 */
+	public static String writeString(Object value) throws IOException {
+		return WRITER.writeValueAsString(value);
+	}
+
+
+	/**
+	 * Serialize a value as one line of JSON, terminated by '\n', in UTF-8
+	 */
+	public static byte[] writeLine(Object value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		WRITER.writeValue(out, value);
+		out.write('\n');
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * Write a value as one line of JSON straight to a character stream, without an
+	 * intermediate String. The stream is not flushed or closed.
+	 */
+	public static void writeLine(Object value, Writer out) throws IOException {
+		WRITER.writeValue(out, value);
+		out.write('\n');
+	}
+
+
+	/**
+	 * Write a value as one line of JSON straight to a byte stream, in UTF-8. The
+	 * stream is not flushed or closed.
+	 */
+	public static void writeLine(Object value, OutputStream out) throws IOException {
+		WRITER.writeValue(out, value);
+		out.write('\n');
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private JsonCodec() {
+	}
+
+}
@@ -0,0 +1,209 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Wire encodings for LamportMessages on the Lamport channel. Every connection
+ * starts in JSON for the INIT_REQUEST/INIT_RESPOND handshake. The two servers
+ * then switch to whatever codec the responder accepted.
+ * <p>
+ * A connection's listener reads with a Reader of its own, which the BINARY codec
+ * decodes the most frequent messages into: see Reader.
+ */
+public enum LamportCodec {
+
+	/**
+	 * One JSON object per line -- the original format
+	 */
+	JSON {
+		@Override
+		public void write(LamportMessage lm, DataOutputStream out) throws IOException {
+			lm.writeJson(out);
+			out.write('\n');
+		}
+
+		@Override
+		public LamportMessage read(DataInputStream in, Reader reader) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b < 0) {
+					if (line.size() == 0)
+						return null;
+					break;
+				}
+				line.write(b);
+			}
+			return LamportMessage.fromString(new String(line.toByteArray(), StandardCharsets.UTF_8).trim());
+		}
+	},
+
+	/**
+	 * Length-prefixed binary frames:
+	 * [int length][byte type][byte flags][int serverID][int partition][int requestID][int clock][int nServers]
+	 * [short event length][UTF-8 event][UTF-8 data]
+	 * where length counts every byte after itself. With a Reader, ACK, REQUEST and
+	 * HEARTBEAT frames are decoded without allocating: the header goes into the
+	 * Reader's message, and the event ID is one the Reader has seen before. Other
+	 * frames allocate a message, and their data.
+	 */
+	BINARY {
+		private static final int HEADER_LENGTH = 2 + 5 * 4;
+		private static final byte HAS_DATA = 1;
+
+		@Override
+		public void write(LamportMessage lm, DataOutputStream out) throws IOException {
+			boolean hasData = lm.data != null && !LamportMessage.NO_DATA.equals(lm.data);
+			byte[] data = hasData ? lm.data.getBytes(StandardCharsets.UTF_8) : null;
+			byte[] event = lm.event.getBytes(StandardCharsets.UTF_8);
+
+			out.writeInt(HEADER_LENGTH + 2 + event.length + (hasData ? data.length : 0));
+			out.writeByte(lm.type.ordinal());
+			out.writeByte(hasData ? HAS_DATA : 0);
+			out.writeInt(lm.serverID);
+			out.writeInt(lm.partition);
+			out.writeInt(lm.requestID);
+			out.writeInt(lm.clock.value());
+			out.writeInt(lm.nServers);
+			out.writeShort(event.length);
+			out.write(event);
+			if (hasData)
+				out.write(data);
+		}
+
+		@Override
+		public LamportMessage read(DataInputStream in, Reader reader) throws IOException {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			if (length < HEADER_LENGTH + 2)
+				throw new IOException("Bad frame length " + length);
+
+			int ordinal = in.readUnsignedByte();
+			if (ordinal >= TYPES.length)
+				throw new IOException("Bad message type " + ordinal);
+			LamportMessageType type = TYPES[ordinal];
+			boolean hasData = (in.readByte() & HAS_DATA) != 0;
+			int serverID = in.readInt();
+			int partition = in.readInt();
+			int requestID = in.readInt();
+			int clock = in.readInt();
+			int nServers = in.readInt();
+			int eventLength = in.readUnsignedShort();
+			int dataLength = length - HEADER_LENGTH - 2 - eventLength;
+			if (dataLength < 0)
+				throw new IOException("Bad frame length " + length + " for an event ID of " + eventLength + " bytes");
+			String event = reader == null ? readString(in, eventLength) : reader.readEvent(in, eventLength);
+
+			String data = LamportMessage.NO_DATA;
+			if (hasData)
+				data = readString(in, dataLength);
+			else if (reader != null && Reader.reuses(type))
+				return reader.message.decoded(type, serverID, event, partition, requestID, nServers, clock, data);
+			return new LamportMessage().decoded(type, serverID, event, partition, requestID, nServers, clock, data);
+		}
+	};
+
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final LamportMessageType[] TYPES = LamportMessageType.values();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Write one message. The caller flushes.
+	 */
+	public abstract void write(LamportMessage lm, DataOutputStream out) throws IOException;
+
+
+	/**
+	 * Read one message, or null at end of stream. The message may be the reader's
+	 * own, which the next read overwrites; with a null reader it never is.
+	 */
+	public abstract LamportMessage read(DataInputStream in, Reader reader) throws IOException;
+
+
+	/**
+	 * Read one message of its own, or null at end of stream
+	 */
+	public LamportMessage read(DataInputStream in) throws IOException {
+		return read(in, null);
+	}
+
+
+	/**
+	 * What one connection's listener keeps between reads: the message that ACK,
+	 * REQUEST and HEARTBEAT frames are decoded into, and the event IDs seen so far.
+	 * Receivers of those messages that keep one past processMessage keep a copy.
+	 */
+	public static final class Reader {
+
+		private static final int MAX_EVENTS = 16;
+
+		private final LamportMessage message = new LamportMessage();
+		private final byte[][] eventBytes = new byte[MAX_EVENTS][];
+		private final String[] events = new String[MAX_EVENTS];
+		private int nextEvent;
+		private byte[] buffer = new byte[64];
+
+		/**
+		 * True for the types that are decoded into the reader's message
+		 */
+		static boolean reuses(LamportMessageType type) {
+			return type == LamportMessageType.CS_ACK || type == LamportMessageType.CS_REQUEST
+					|| type == LamportMessageType.HEARTBEAT;
+		}
+
+		/**
+		 * Read an event ID, as the String read the first time it was seen. A
+		 * connection carries few events, so the oldest of too many is forgotten.
+		 */
+		String readEvent(DataInputStream in, int length) throws IOException {
+			if (buffer.length < length)
+				buffer = new byte[Math.max(length, 2 * buffer.length)];
+			in.readFully(buffer, 0, length);
+			for (int i = 0; i < MAX_EVENTS && eventBytes[i] != null; i++)
+				if (equal(eventBytes[i], buffer, length))
+					return events[i];
+			String event = new String(buffer, 0, length, StandardCharsets.UTF_8);
+			eventBytes[nextEvent] = Arrays.copyOf(buffer, length);
+			events[nextEvent] = event;
+			nextEvent = (nextEvent + 1) % MAX_EVENTS;
+			return event;
+		}
+
+		private static boolean equal(byte[] known, byte[] buffer, int length) {
+			if (known.length != length)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (known[i] != buffer[i])
+					return false;
+			return true;
+		}
+
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private static String readString(DataInputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -1,48 +1,232 @@
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStream;
+import java.io.StringWriter;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 public class LamportMessage implements Comparable<LamportMessage> {
 //****************************************************************
 //	Fields
 //****************************************************************	
+	static final String NO_DATA = "NO DATA";
+	
 	LamportMessageType type;
 	int serverID;
+	String event;
+	int partition;
+	int requestID;
 	LogicalClock clock;
 	String data;
 	int nServers;
+	String codec;
+	String members;
 	
 	
 //****************************************************************
 //	Public Methods
 //****************************************************************	
 
-	public static LamportMessage ACK(int serverID, LogicalClock clock) {
-		return new LamportMessage(LamportMessageType.CS_ACK, serverID, -1, clock, "NO DATA");
+	public static LamportMessage ACK(int serverID, String event, int partition, LogicalClock clock, int requestID) {
+		return new LamportMessage(LamportMessageType.CS_ACK, serverID, event, partition, requestID, -1, clock, NO_DATA);
 	}
 
 	
-	public static LamportMessage RELEASE(int serverID, LogicalClock clock, String data) {
-		return new LamportMessage(LamportMessageType.CS_RELEASE, serverID, -1, clock, data);
+	public static LamportMessage RELEASE(int serverID, String event, int partition, LogicalClock clock, int requestID, String data) {
+		return new LamportMessage(LamportMessageType.CS_RELEASE, serverID, event, partition, requestID, -1, clock, data);
 	}
 
 	
-	public static LamportMessage REQUEST(int serverID, LogicalClock clock) {
-		return new LamportMessage(LamportMessageType.CS_REQUEST, serverID, -1, clock, "NO DATA");
+	public static LamportMessage REQUEST(int serverID, String event, int partition, LogicalClock clock, int requestID) {
+		return new LamportMessage(LamportMessageType.CS_REQUEST, serverID, event, partition, requestID, -1, clock, NO_DATA);
 	}
 
 	
-	public static LamportMessage INIT_REQUEST(int serverID, LogicalClock clock) {
-		return new LamportMessage(LamportMessageType.INIT_REQUEST, serverID, -1, clock, "NO DATA");
+	/**
+	 * codec is the wire format the sender would like to switch to after the handshake,
+	 * data the operations the sender has applied and the digests of its events,
+	 * members the address of the sender, so a server that was not configured with it
+	 * can reach it again
+	 */
+	public static LamportMessage INIT_REQUEST(int serverID, LogicalClock clock, String data, LamportCodec codec, String members) {
+		LamportMessage lm = new LamportMessage(LamportMessageType.INIT_REQUEST, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, data);
+		lm.codec = codec.toString();
+		lm.members = members;
+		return lm;
+	}
+	
+	
+	/**
+	 * codec is the wire format both servers use after the handshake, members the
+	 * addresses of the live servers, the responder included
+	 */
+	public static LamportMessage INIT_RESPOND(int serverID, int nServers, LogicalClock clock, String data, LamportCodec codec, String members) {
+		LamportMessage lm = new LamportMessage(LamportMessageType.INIT_RESPOND, serverID, EventInventory.DEFAULT_EVENT, 0, -1, nServers, clock, data);
+		lm.codec = codec.toString();
+		lm.members = members;
+		return lm;
+	}
+	
+	
+	/**
+	 * A chunk of the seats of an event, sent after INIT_RESPOND to catch up a server
+	 */
+	public static LamportMessage INIT_DATA(int serverID, String event, LogicalClock clock, String data) {
+		return new LamportMessage(LamportMessageType.INIT_DATA, serverID, event, 0, -1, -1, clock, data);
+	}
+	
+	
+	/**
+	 * Sent after the last INIT_DATA chunk
+	 */
+	public static LamportMessage INIT_DONE(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.INIT_DONE, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Sent every heartbeat interval, so the other server knows we are alive
+	 */
+	public static LamportMessage HEARTBEAT(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.HEARTBEAT, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Hands the token of a token-based mutex to the next server, data the token itself
+	 */
+	public static LamportMessage TOKEN(int serverID, String event, int partition, LogicalClock clock, String data) {
+		return new LamportMessage(LamportMessageType.TOKEN, serverID, event, partition, -1, -1, clock, data);
+	}
+	
+	
+	/**
+	 * Asks every server whether it holds the token, before a new one is made. data is
+	 * the generation of the new token: older ones are dropped from now on.
+	 */
+	public static LamportMessage TOKEN_QUERY(int serverID, String event, int partition, LogicalClock clock, int round, String data) {
+		return new LamportMessage(LamportMessageType.TOKEN_QUERY, serverID, event, partition, round, -1, clock, data);
+	}
+	
+	
+	/**
+	 * Answer to TOKEN_QUERY, data what the server knows about the token 
+	 */
+	public static LamportMessage TOKEN_STATE(int serverID, String event, int partition, LogicalClock clock, int round, String data) {
+		return new LamportMessage(LamportMessageType.TOKEN_STATE, serverID, event, partition, round, -1, clock, data);
+	}
+	
+	
+	/**
+	 * Tells the server that looks for lost tokens that the token was last sent to a server now gone
+	 */
+	public static LamportMessage TOKEN_LOST(int serverID, String event, int partition, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.TOKEN_LOST, serverID, event, partition, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Bully election: sent to every higher server by a server that wants to lead
+	 */
+	public static LamportMessage ELECTION(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.ELECTION, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Answer to ELECTION from a higher server, which takes the election over
+	 */
+	public static LamportMessage ELECTION_OK(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.ELECTION_OK, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Sent by the winner of an election to every other server
+	 */
+	public static LamportMessage COORDINATOR(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.COORDINATOR, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
 	}
 	
 	
-	public static LamportMessage INIT_RESPOND(int serverID, int nServers, LogicalClock clock, String data) {
-		return new LamportMessage(LamportMessageType.INIT_RESPOND, serverID, nServers, clock, data);
+	/**
+	 * Answer to COORDINATOR, once the server has no writes of its own left in progress
+	 */
+	public static LamportMessage COORDINATOR_ACK(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.COORDINATOR_ACK, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * A client request passed on to the leader, data the request as JSON
+	 */
+	public static LamportMessage FORWARD(int serverID, String event, LogicalClock clock, int forwardID, String data) {
+		return new LamportMessage(LamportMessageType.FORWARD, serverID, event, 0, forwardID, -1, clock, data);
+	}
+	
+	
+	/**
+	 * The leader's answer to FORWARD, data the response as JSON, or NO_DATA if the
+	 * request failed
+	 */
+	public static LamportMessage FORWARD_RESPONSE(int serverID, LogicalClock clock, int forwardID, String data) {
+		return new LamportMessage(LamportMessageType.FORWARD_RESPONSE, serverID, EventInventory.DEFAULT_EVENT, 0, forwardID, -1, clock, data);
+	}
+	
+	
+	/**
+	 * Sent by a server that is shutting down, so the others do not try to reconnect to it
+	 */
+	public static LamportMessage LEAVE(int serverID, LogicalClock clock) {
+		return new LamportMessage(LamportMessageType.LEAVE, serverID, EventInventory.DEFAULT_EVENT, 0, -1, -1, clock, NO_DATA);
+	}
+	
+	
+	/**
+	 * Fill this message in with one read by a binary LamportCodec, which may reuse
+	 * the message and its clock for the next one
+	 */
+	LamportMessage decoded(LamportMessageType type, int serverID, String event, int partition, int requestID, int nServers, int clock, String data) {
+		this.type = type;
+		this.serverID = serverID;
+		this.event = event;
+		this.partition = partition;
+		this.requestID = requestID;
+		this.nServers = nServers;
+		if (this.clock == null)
+			this.clock = new LogicalClock(clock);
+		else
+			this.clock.set(clock);
+		this.data = data;
+		this.codec = null;
+		this.members = null;
+		return this;
+	}
+	
+	
+	/**
+	 * A message of its own with the same fields, for a receiver that keeps a
+	 * message its codec may reuse
+	 */
+	LamportMessage copy() {
+		LamportMessage lm = new LamportMessage().decoded(type, serverID, event, partition, requestID, nServers, clock.value(), data);
+		lm.codec = codec;
+		lm.members = members;
+		return lm;
+	}
+	
+	
+	/**
+	 * Codec named in an INIT message. Peers that predate codec negotiation send
+	 * none, and only speak JSON.
+	 */
+	public LamportCodec getCodec() {
+		try {
+			return codec==null ? LamportCodec.JSON : LamportCodec.valueOf(codec);
+		} catch (IllegalArgumentException e) {
+			return LamportCodec.JSON;
+		}
 	}
 
 	
@@ -54,46 +238,74 @@ public class LamportMessage implements Comparable<LamportMessage> {
 			if (serverID < o.serverID)
 				return -1;
 			else if (serverID == o.serverID)
-				return 0;
+				return Integer.compare(requestID, o.requestID);
 		return 1;
 	}
 
 	
 	@Override
 	public String toString() {
-		Map<String, String> map = new HashMap<>();
-		map.put("type", type.toString());
-		map.put("serverID", "" + serverID);
-		map.put("clock", "" + clock.value());
-		map.put("data", data);
-		map.put("nServers", ""+nServers);
-
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			String jsonRequest = mapper.writer().writeValueAsString(map);
-			return jsonRequest;
-		} catch (JsonProcessingException e1) {
+		StringWriter out = new StringWriter(128);
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			writeJson(gen);
+		} catch (IOException e1) {
 			e1.printStackTrace();
+			return "Error creating string";
+		}
+		return out.toString();
+	}
+
+	
+	/**
+	 * Write this message as JSON straight to a stream, without an intermediate String.
+	 * The stream is not flushed or closed.
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			writeJson(gen);
 		}
-		return "Error creating string";
 	}
 
 	
+	/**
+	 * Parse a message written by toString(), or null if it is not a valid message.
+	 * Every value is a JSON string, which keeps the format readable by older servers.
+	 */
 	public static LamportMessage fromString(String msg) {
-		ObjectMapper mapper = new ObjectMapper();
-		TypeReference<HashMap<String, String>> typeRef = new TypeReference<HashMap<String, String>>() {
-		};
+		if (msg == null)
+			return null;
 
-		try {
-			Map<String, String> map = mapper.readValue(msg, typeRef);
+		try (JsonParser parser = JsonCodec.factory().createParser(msg)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				return null;
+			
 			LamportMessage lm = new LamportMessage();
-			lm.clock = new LogicalClock(Integer.parseInt(map.get("clock")));
-			lm.type = LamportMessageType.valueOf(map.get("type"));
-			lm.serverID = Integer.parseInt(map.get("serverID"));
-			lm.data = map.get("data");
-			lm.nServers = Integer.parseInt(map.get("nServers"));
-			return lm;
-		} catch (IOException e) {
+			lm.requestID = -1;
+			lm.nServers = -1;
+			lm.event = EventInventory.DEFAULT_EVENT;
+			lm.data = NO_DATA;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				String value = parser.getValueAsString();
+				if (value == null)
+					continue;
+				switch (field) {
+				case "type":		lm.type = LamportMessageType.valueOf(value); break;
+				case "serverID":	lm.serverID = Integer.parseInt(value); break;
+				case "event":		lm.event = value; break;
+				case "partition":	lm.partition = Integer.parseInt(value); break;
+				case "requestID":	lm.requestID = Integer.parseInt(value); break;
+				case "clock":		lm.clock = new LogicalClock(Integer.parseInt(value)); break;
+				case "data":		lm.data = value; break;
+				case "nServers":	lm.nServers = Integer.parseInt(value); break;
+				case "codec":		lm.codec = value; break;
+				case "members":		lm.members = value; break;
+				default:			break; // fields from newer servers
+				}
+			}
+			return (lm.type == null || lm.clock == null) ? null : lm;
+		} catch (IOException | IllegalArgumentException e) {
 			e.printStackTrace();
 		}
 
@@ -105,14 +317,37 @@ public class LamportMessage implements Comparable<LamportMessage> {
 //	Private Methods
 //****************************************************************
 	
-	private LamportMessage(){
+	/**
+	 * An empty message, for a codec to decode into
+	 */
+	LamportMessage(){
 		
 	}
 	
-	private LamportMessage(LamportMessageType type, int serverID, int nServers, LogicalClock clock, String data) {
+	private void writeJson(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		gen.writeStringField("type", type.toString());
+		gen.writeStringField("serverID", Integer.toString(serverID));
+		gen.writeStringField("event", event);
+		gen.writeStringField("partition", Integer.toString(partition));
+		gen.writeStringField("requestID", Integer.toString(requestID));
+		gen.writeStringField("clock", Integer.toString(clock.value()));
+		gen.writeStringField("data", data);
+		gen.writeStringField("nServers", Integer.toString(nServers));
+		if(codec != null)
+			gen.writeStringField("codec", codec);
+		if(members != null)
+			gen.writeStringField("members", members);
+		gen.writeEndObject();
+	}
+	
+	private LamportMessage(LamportMessageType type, int serverID, String event, int partition, int requestID, int nServers, LogicalClock clock, String data) {
 		this.type = type;
 		this.serverID = serverID;
-		this.clock = clock;
+		this.event = event;
+		this.partition = partition;
+		this.requestID = requestID;
+		this.clock = new LogicalClock(clock.value()); // timestamp at send time, not a live clock
 		this.data = data;
 		this.nServers = nServers;
 	}
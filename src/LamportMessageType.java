@@ -1,4 +1,5 @@
 
 public enum LamportMessageType {
-	INIT_REQUEST, INIT_RESPOND, CS_REQUEST, CS_ACK, CS_RELEASE;
+	INIT_REQUEST, INIT_RESPOND, CS_REQUEST, CS_ACK, CS_RELEASE, INIT_DATA, INIT_DONE, HEARTBEAT, TOKEN, TOKEN_QUERY, TOKEN_STATE, TOKEN_LOST,
+	ELECTION, ELECTION_OK, COORDINATOR, COORDINATOR_ACK, FORWARD, FORWARD_RESPONSE, LEAVE;
 }
\ No newline at end of file
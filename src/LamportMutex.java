@@ -1,39 +1,38 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ConnectException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class LamportMutex {
+/**
+ * Lamport mutual exclusion for one seat partition of one event. Every partition
+ * has its own Q, clock and RELEASE stream; all of them share the server's
+ * PeerNetwork.
+ */
+public class LamportMutex implements DistributedMutex, OrderedReads {
 	
 //****************************************************************
 //	Fields
 //****************************************************************	
-	private static final int MAX_SERVERS = 10;
-	
-	private List<InetAddress> servers;
-	private List<Integer> ports;
+	private PeerNetwork network;
+	private EventInventory inventory;
+	private int partition;
 	private LogicalClock clock;
-	private Socket[] lamportSockets;
-	private PrintWriter[] lamportWriters;
-	private BufferedReader[] lamportReaders;
-	private int nServers;
 	private int serverID;
 	private Server server;
+	private Logger log;
 	private PriorityBlockingQueue<LamportMessage> Q;
-	private int numACKs;
-	private ServerSocket serverSocket;
-	private Thread connectThread;
-	private boolean restart;
-	private List<Integer> connectedServers;
+	private Map<Integer, Set<Integer>> acks;
+	private Map<LamportMessage, String> releasedRequests;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition csCondition = lock.newCondition();
 	
 	
 //****************************************************************
@@ -44,388 +43,368 @@ public class LamportMutex {
 	/**
 	 * Request the CS. This method blocks until access to CS is granted based
 	 * on Lamport algorithm conditions.
+	 * 
+	 * @return the ID of the granted request, to be passed to releaseCS
 	 */
-	public void requestCriticalSection() {
-		server.log.log(Level.FINE, "Requesting CS");
-		numACKs = 0;
-		LamportMessage lm = LamportMessage.REQUEST(serverID, clock);
-		
-		// enter (timestamp, serverID) of request in Q
-		server.log.log(Level.FINEST, "Adding message to Q");
-		Q.add(lm);
-		
-		// send request to N-1 other servers
-		broadcastMessage(lm.toString());
-		
-		// wait for Lamport conditions to be satisfied
-		while( numACKs<(nServers-1) || Q.peek().serverID!=serverID){
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-		server.log.log(Level.FINE, "Entering CS...");
-		
+	@Override
+	public int requestCriticalSection() {
+		LamportMessage lm = sendRequest();
+		awaitCS(lm);
+		return lm.requestID;
 	}	
 	
 	
 	/**
-	 * release the CS and send updated data to other servers 
+	 * release the CS held by the given request and send the seat changes made
+	 * in the CS to other servers
+	 * 
+	 * @return the write-ahead log sequence number of the changes, for Server.awaitDurable
+	 */
+	@Override
+	public long releaseCS(int requestID, List<SeatChange> changes) {
+		BitSet partitions = new BitSet();
+		partitions.set(partition);
+		return inventory.releaseCriticalSections(partitions, requestID, changes);
+	}
+	
+	
+	/**
+	 * Block until every request in Q with a timestamp before the given one has been
+	 * released and its data applied. Lets reads catch up without entering the CS.
+	 */
+	@Override
+	public void awaitAppliedBefore(int timestamp) {
+		lock.lock();
+		try {
+			LamportMessage head;
+			while( (head = Q.peek()) != null && head.clock.value() < timestamp )
+				csCondition.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Current value of the Lamport clock 
 	 */
-	public void releaseCS(String data) {
-		server.log.log(Level.FINE, "Releasing CS");
-		LamportMessage lm = LamportMessage.RELEASE(serverID, clock, data);
-		broadcastMessage(lm.toString());
-		Q.remove();
+	@Override
+	public int currentTime() {
+		return clock.value();
 	}
 	
 	
 	/**
 	 * Process a received LamportMessage based on type: CS_REQUEST, CS_ACK, or CS_RELEASE
 	 */
-	private void processMessage(LamportMessage lm) {
+	@Override
+	public void processMessage(LamportMessage lm) {
+		
+		if (log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Processing message " + lm.toString());
 		
-		server.log.log(Level.FINER, "Processing message " + lm.toString());
+		// update clock compared to their clock
+		clock.advance(lm.clock);
 		
 		// behavior determined by message type
 		if(lm.type == LamportMessageType.CS_REQUEST){
-			Q.add(lm);
-			server.log.log(Level.FINEST, "Processing REQUEST message: Q = " + Q);
-			sendMessage(lm.serverID, LamportMessage.ACK(serverID, clock).toString());
+			// hold the lock while ACKing, so the ACK cannot overtake a local request
+			// that is already in our Q but not yet sent
+			lock.lock();
+			try {
+				// the listener decodes its next message into lm
+				lm = lm.copy();
+				Q.add(lm);
+				if (log.isLoggable(Level.FINEST))
+					log.log(Level.FINEST, "Processing REQUEST message: Q = " + Q);
+				sendMessage(lm.serverID, LamportMessage.ACK(serverID, inventory.getID(), partition, clock, lm.requestID));
+			} finally {
+				lock.unlock();
+			}
 			
 		} else if(lm.type == LamportMessageType.CS_ACK){
-			numACKs++;
-			server.log.log(Level.FINEST, "Processing ACK message: numAcks = " + numACKs);
+			lock.lock();
+			try {
+				// ACKs for requests that already entered and left are dropped
+				Set<Integer> ackers = acks.get(lm.requestID);
+				if(ackers != null)
+					ackers.add(lm.serverID);
+				csCondition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (log.isLoggable(Level.FINEST))
+				log.log(Level.FINEST, "Processing ACK message for request " + lm.requestID);
 			
 		} else if(lm.type == LamportMessageType.CS_RELEASE){
-			// remove their entry from the Q
-			Q.remove();
-			server.log.log(Level.FINEST, "Processing RELEASE message: Q = " + Q);
-			
-			// update server data
-			server.syncData(lm.data);
+			// RELEASEs from different servers can arrive out of Q order, so the data
+			// is held with its request and applied once that request reaches the head
+			lock.lock();
+			try {
+				LamportMessage request = findRequest(lm.serverID, lm.requestID);
+				if(request == null)
+					applyReleaseData(lm.serverID, lm.requestID, lm.data);
+				else
+					releasedRequests.put(request, lm.data);
+				applyReleasedRequests();
+				csCondition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (log.isLoggable(Level.FINEST))
+				log.log(Level.FINEST, "Processing RELEASE message: Q = " + Q);
 		}
-		
-		// update clock compared to their clock
-		clock = (clock.value()>lm.clock.value())?clock:lm.clock;
-		clock.increment();
 	}
 	
 	
-//****************************************************************
-//	Public Methods
-//****************************************************************	
-
 	/**
-	 * Constructor 
+	 * Enter a new request in Q and send it to the N-1 other servers. Each request
+	 * gets its own ID, so concurrent local requests collect their ACKs separately.
 	 */
-	public LamportMutex(List<InetAddress> servers, List<Integer> ports, Server server, boolean restart) {
-		this.servers = servers;
-		this.ports = ports;
-		this.server = server;
-		this.serverID = server.getID();
-		this.restart = restart;
-		nServers = 1;
-		Q = new PriorityBlockingQueue<>();
-		clock = new LogicalClock(0);
-		lamportSockets = new Socket[MAX_SERVERS];
-		lamportWriters = new PrintWriter[MAX_SERVERS];
-		lamportReaders = new BufferedReader[MAX_SERVERS];
-		connectedServers = new ArrayList<>();
-		connectedServers.add(serverID);
-		
+	private LamportMessage sendRequest() {
+		lock.lock();
 		try {
-			serverSocket = new ServerSocket(ports.get(serverID)+1);
-		} catch (IOException e1) {
-			e1.printStackTrace();
+			return sendRequest(clock.value(), network.nextRequestID());
+		} finally {
+			lock.unlock();
 		}
 	}
 	
 	
 	/**
-	 * Initialize Lamport connections, including listening for incoming connections
-	 * And attempting to connect to other servers
+	 * Enter a request with the given timestamp in Q and send it to the N-1 other
+	 * servers. The timestamp must not be behind our clock -- must hold lock
 	 */
-	public void init(){
-		startConnectionThread();
-		connectToOtherServers(restart, servers.size());
+	@Override
+	public LamportMessage sendRequest(int timestamp, int requestID) {
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Requesting CS on partition " + partition);
+		
+		// enter (timestamp, serverID, requestID) of request in Q, and send
+		// request to N-1 other servers
+		LamportMessage lm = LamportMessage.REQUEST(serverID, inventory.getID(), partition, new LogicalClock(timestamp), requestID);
+		if (log.isLoggable(Level.FINEST))
+			log.log(Level.FINEST, "Adding request " + lm.requestID + " to Q");
+		acks.put(lm.requestID, new HashSet<Integer>());
+		Q.add(lm);
+		broadcastMessage(lm);
+		
+		// later messages of this partition must be stamped after the request
+		clock.advance(lm.clock);
+		return lm;
 	}
 	
 	
-//****************************************************************
-//	Private Methods -- mostly network related
-//****************************************************************
-	
 	/**
-	 * Start the infinite TCP listening thread
+	 * Send the RELEASE of a request in the CS, and let the next one in
 	 */
-	private void startConnectionThread(){
-		server.log.log(Level.INFO, "Lamport Mutex initating connections");
-		
-		// start eternal socket acceptance loop
-		connectThread = new Thread(new Runnable(){
-			@Override
-			public void run() {
-				connectionLoop();
-			}
-		});
-		connectThread.start();
+	@Override
+	public void release(int requestID, String data) {
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Releasing CS for request " + requestID);
+		LamportMessage lm = LamportMessage.RELEASE(serverID, inventory.getID(), partition, clock, requestID, data);
+		lock.lock();
+		try {
+			broadcastMessage(lm);
+			removeRequest(serverID, requestID);
+			applyReleasedRequests();
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	
 	/**
-	 * Infinite TCP connection listener loop
+	 * Wait for Lamport conditions to be satisfied -- processMessage signals
+	 * us whenever an ACK or RELEASE arrives
 	 */
-	private void connectionLoop(){
-		while(true){
-			server.log.log(Level.FINER, "Listenining for connection on port "+ (ports.get(serverID)+1));
-			try {
-				// set up connection from unknown server
-				Socket sock = serverSocket.accept();
-				initIncomingConnection(sock);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	@Override
+	public void awaitCS(LamportMessage lm) {
+		lock.lock();
+		try {
+			while( !canEnterCS(lm) )
+				csCondition.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
 		}
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Entering CS on partition " + partition + " with request " + lm.requestID);
 	}
 	
 	
 	/**
-	 * Connect to the other Lamport servers. If "restart==false", this will attempt to
-	 * connect only to servers with id < this.serverID. If "restart==true", this will
-	 * attempt to connect to all other servers.  
+	 * Lamport conditions for entering the CS -- must hold lock
 	 */
-	private void connectToOtherServers(boolean restart, int nOthers){
-		// create other initial connections
-		int iServer = -1;
-		
-		// if restarting, start by assuming that you must connect to all other servers
-		// this will be updated after connecting to one live server
-		// otherwise, on a fresh startup, connect to all servers with serverID less than yours 
-		int nConnections = restart ? (nOthers) : serverID+1;
-		
-		while(connectedServers.size() < nConnections) {
-			iServer = (iServer+1) % (restart?nConnections:serverID);
-			if (connectedServers.contains(iServer))
-				continue; // this socket and thread will be null
-
-			try {
-				server.log.fine("Entering connect loop for iServer = " + iServer);
-				Socket sock = new Socket();
-				try{
-					sock.connect(new InetSocketAddress(servers.get(iServer), ports.get(iServer) + 1), Client.TIMEOUT);
-					connectedServers.add(iServer);
-				} catch (ConnectException e) {
-					// could not connect. Wait 1/2 second and move on
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e1) {}
-					server.log.log(Level.FINER, "Lamport connection NOT made to server "+iServer);
-					continue;
-				}
-				
-				nConnections = initOutgoingConnection(sock, iServer, nConnections);
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		server.log.fine("Finished in ctor connection loop");
+	private boolean canEnterCS(LamportMessage lm) {
+		return acks.get(lm.requestID).size()>=(network.getNumServers()-1) && Q.peek()==lm;
 	}
-
+	
 	
 	/**
-	 * Initialize a new outgoing connection. 
+	 * Find the given request in the Q, or null if it is not there -- must hold lock
 	 */
-	private void initIncomingConnection(Socket sock) throws IOException{
-		server.log.log(Level.FINER, "Initializing connection with new server");
-		
-		PrintWriter pw = new PrintWriter(sock.getOutputStream());
-		BufferedReader br = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-		
-		// listen for INIT message from unknown server
-		String msg = br.readLine();
-		LamportMessage lm = LamportMessage.fromString(msg);
-		
-		// invalid message ... break connection
-		if(lm==null || lm.type!=LamportMessageType.INIT_REQUEST){
-			sock.close();
-			return;
-		}
-		
-		// get serverID
-		int iServer = lm.serverID; 					
-		
-		if(lamportSockets[iServer] != null){
-			server.log.log(Level.WARNING, "Imposter attempt from server ID "+ iServer);
-			sock.close();
-			return;
-		}
-						
-		initConnectionCommon(sock, pw, br, iServer);
-
-		// respond with current data
-		// and current number of servers
-		LamportMessage respond = LamportMessage.INIT_RESPOND(serverID, nServers, clock, server.getSerializedData());
-		sendMessage(iServer, respond.toString());
-
+	private LamportMessage findRequest(int otherServerID, int requestID) {
+		for(LamportMessage lm : Q)
+			if(lm.serverID==otherServerID && lm.requestID==requestID)
+				return lm;
+		return null;
 	}
 	
 	
 	/**
-	 * Initialize a new incoming connection. 
+	 * Remove the given request from the Q, and forget its ACKs -- must hold lock
 	 */
-	private int initOutgoingConnection(Socket sock, int iServer, int nConnections) throws IOException{
-		server.log.log(Level.FINER, "Initializing connection with server "+iServer);
-
-		PrintWriter pw = new PrintWriter(sock.getOutputStream());
-		BufferedReader br = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-		
-		// write out init message
-		LamportMessage lminit = LamportMessage.INIT_REQUEST(serverID ,clock);
-		server.log.log(Level.FINEST, "Sending message " + lminit + " to server " + iServer);
-		sendMessage(pw, lminit.toString());
-		
-		// read back data
-		LamportMessage lmresp = receiveMessage(br);
-		if(lmresp.type!=LamportMessageType.INIT_RESPOND){
-			sock.close();
-			connectedServers.remove(iServer);
-			return nConnections;
+	private void removeRequest(int otherServerID, int requestID) {
+		LamportMessage lm = findRequest(otherServerID, requestID);
+		if(lm != null)
+			Q.remove(lm);
+		if(otherServerID==serverID)
+			acks.remove(requestID);
+	}
+	
+	
+	/**
+	 * Apply the data of released requests at the head of the Q, in Q order -- must hold lock
+	 */
+	private void applyReleasedRequests() {
+		LamportMessage head;
+		while( (head = Q.peek()) != null && releasedRequests.containsKey(head) ){
+			applyReleaseData(head.serverID, head.requestID, releasedRequests.remove(head));
+			Q.remove(head);
 		}
-		server.syncData(lmresp.data);
-		
-		// update number of servers to connect to, if restarting
-		nConnections = restart ? lmresp.nServers : nConnections;
-		server.log.log(Level.FINER, "Lamport connection made to server "+iServer);
+	}
 	
-		initConnectionCommon(sock, pw, br, iServer);
-		
-		return nConnections;
+	
+	/**
+	 * Update server data from a RELEASE. Even a RELEASE that changed nothing is
+	 * an operation of the releasing server's stream.
+	 */
+	private void applyReleaseData(int otherServerID, int requestID, String data) {
+		inventory.applyOperation(network.getPeerStream(otherServerID), requestID, data);
 	}
 	
 	
+	
+	
 	/**
-	 * Common steps for connection initialization 
+	 * Send a message to another server, specified by their serverID -- must hold lock
 	 */
-	private void initConnectionCommon(Socket sock, PrintWriter pw, BufferedReader br, int iServer){
-		// save readers/writers
-		lamportSockets[iServer] = sock;
-		lamportWriters[iServer] = pw; 
-		lamportReaders[iServer] = br;
-		incrementNumServers();
+	private void sendMessage(int otherServerID, LamportMessage message) {
+		network.sendMessage(otherServerID, message);
 		
-		// spin off new thread
-		final int ii = iServer;
-		Thread t = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				listenerLoop(ii);
-			}
-		});
-		server.log.log(Level.FINEST, "Starting Lamport thread "+iServer);
-		t.start();
+		// increment clock
+		clock.increment();
+		if (log.isLoggable(Level.FINEST))
+			log.log(Level.FINEST, "Incrementing Lamport clock = " + clock.value());
 	}
 	
 	
 	/**
-	 * Listen infinite listen loop for Lamport messages on the Lamport channel 
+	 * Broadcast message to all other listening servers -- must hold lock, so
+	 * messages of this partition leave in the order they were created
 	 */
-	private void listenerLoop(int otherServerID){
-		LamportMessage lm = null;
-		server.log.finer("Entering listener loop for server " + otherServerID);
-		try{
-			while( (lm = receiveMessage(lamportReaders[otherServerID])) != null){
-				server.log.log(Level.FINEST, "Received string " + lm.toString() + " from server " + otherServerID);
-				// process message based on type
-				processMessage(lm);
-			}
-		} catch (Exception e){}
-		finally{
-			server.log.log(Level.WARNING, "Uh oh! Lost connection with server " + otherServerID + ": clearing comms");
-			lamportSockets[otherServerID] = null;
-			lamportWriters[otherServerID] = null; 
-			lamportReaders[otherServerID] = null;
-			decrementNumServers();
-		}
-		server.log.finer("Leaving listener loop for server " + otherServerID);
+	private void broadcastMessage(LamportMessage msg) {
+		network.broadcastMessage(msg);
+		
+		// increment clock
+		clock.increment();
+		if (log.isLoggable(Level.FINEST))
+			log.log(Level.FINEST, "Incrementing Lamport clock = " + clock.value());
 	}
 	
 	
+//****************************************************************
+//	Public Methods
+//****************************************************************	
+
 	/**
-	 * Decrement the number of known live servers -- synchronized 
+	 * Constructor 
 	 */
-	private synchronized void decrementNumServers(){
-		nServers--;
-		server.log.fine("Decrementing nServers: " + nServers);
+	public LamportMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+		this.network = network;
+		this.inventory = inventory;
+		this.server = server;
+		this.log = server.getLogger("mutex");
+		this.serverID = server.getID();
+		this.partition = partition;
+		Q = new PriorityBlockingQueue<>();
+		acks = new HashMap<>();
+		releasedRequests = new HashMap<>();
+		clock = new LogicalClock(0);
 	}
-
+	
 	
 	/**
-	 * Increment the number of known live servers -- synchronized 
+	 * The seat partition this mutex guards 
 	 */
-	private synchronized void incrementNumServers(){
-		nServers++;
-		server.log.fine("Incrementing nServers: " + nServers);
+	@Override
+	public int getPartition() {
+		return partition;
 	}
 	
 	
 	/**
-	 * Send a message to another server, specified by their serverID 
+	 * Number of requests in Q, from every server 
 	 */
-	private void sendMessage(int otherServerID, String message) {
-		if( lamportSockets[otherServerID] != null){
-			server.log.log(Level.FINEST, "Sending message " + message + " to server " + otherServerID);
-			sendMessage(lamportWriters[otherServerID], message);
-		}
+	@Override
+	public int getQueueDepth() {
+		return Q.size();
 	}
 	
 	
+//****************************************************************
+//	Network Methods -- called by the PeerNetwork
+//****************************************************************
+	
 	/**
-	 * Send a message to another server, specified by the writer 
+	 * Hold off all message processing and sending for this partition 
 	 */
-	private void sendMessage(PrintWriter br, String message) {
-		br.println(message);
-		br.flush();
-		
-		// increment clock
-		clock.increment();
-		server.log.log(Level.FINEST, "Incrementing Lamport clock = " + clock.value());
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+	
+	
+	@Override
+	public void unlock() {
+		lock.unlock();
 	}
 	
 	
 	/**
-	 * Receive a LamportMessage over the given reader   
+	 * Send our requests still in the Q to a server that just connected -- must hold lock 
 	 */
-	private LamportMessage receiveMessage(BufferedReader br){
-		String msg = null;
-		try {
-			msg = br.readLine();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		// increment clock
-				clock.increment();
-				server.log.log(Level.FINEST, "Incrementing Lamport clock = " + clock.value());
-				
-		return LamportMessage.fromString(msg);
+	@Override
+	public void resendRequests(int otherServerID) {
+		for(LamportMessage lm : Q)
+			if(lm.serverID==serverID)
+				network.sendMessage(otherServerID, lm);
 	}
 	
-
+	
 	/**
-	 * Broadcast message to all other listening servers 
+	 * Forget a server that is gone: drop its requests from the Q, unless their
+	 * RELEASE already arrived, and its ACKs, which only count while it is live.
+	 * Then wake up waiters, since fewer ACKs are needed now. 
 	 */
-	private void broadcastMessage(String msg) {
-		server.log.log(Level.FINER, "Broadcasting message " + msg + " to all servers");
-		for (int i = 0; i < servers.size(); i++) {
-			if (i == serverID)
-				continue;
-			sendMessage(i, msg);
+	@Override
+	public void peerLost(int otherServerID) {
+		lock.lock();
+		try {
+			Iterator<LamportMessage> it = Q.iterator();
+			while(it.hasNext()){
+				LamportMessage lm = it.next();
+				if(lm.serverID==otherServerID && !releasedRequests.containsKey(lm))
+					it.remove();
+			}
+			for(Set<Integer> ackers : acks.values())
+				ackers.remove(otherServerID);
+			applyReleasedRequests();
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
 		}
-
 	}
 
 }
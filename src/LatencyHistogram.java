@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, in the manner of an HDR histogram:
+ * values below 128 are counted exactly, and above that each power of two is split
+ * into 64 buckets, so every value is known to within 1/64 of itself from 1 us to
+ * hours, in a few thousand counters. Values are recorded without locking, from
+ * any number of threads.
+ */
+public class LatencyHistogram {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Record a latency in microseconds. Negative values count as 0.
+	 */
+	public void record(long micros) {
+		long value = Math.max(0L, micros);
+		counts.incrementAndGet(indexOf(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+
+	/**
+	 * Record the time since a System.nanoTime() timestamp
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+
+	/**
+	 * Add every value recorded in another histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.addAndGet(i, n);
+		}
+		total.addAndGet(other.total.get());
+		sum.addAndGet(other.sum.get());
+		long m;
+		long otherMax = other.max.get();
+		while (otherMax > (m = max.get()) && !max.compareAndSet(m, otherMax))
+			;
+	}
+
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0L);
+		total.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+
+	public long getCount() {
+		return total.get();
+	}
+
+
+	public long getMax() {
+		return max.get();
+	}
+
+
+	/**
+	 * Sum of every value recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+
+	public double getMean() {
+		long n = total.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+
+	/**
+	 * The latency that the given percentage of values are at or below, e.g. 99.9,
+	 * as the highest value of its bucket. 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percent) {
+		long n = total.get();
+		if (n == 0)
+			return 0L;
+		long rank = Math.max(1L, (long) Math.ceil(percent / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+
+	/**
+	 * count, mean, p50, p90, p99, p99.9 and max, in microseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d", getCount(), getMean(),
+				getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9), getMax());
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Values below 2*SUB_BUCKETS are their own index. Above, a value is shifted
+	 * right until it has SUB_BUCKET_BITS+1 bits, and the shift picks the group.
+	 */
+	private static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+
+	private static long highestValueAt(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index - (long) shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader-based replication, with replication=leader. Instead of every server
+ * entering the CS for its own clients, one server, the leader, applies all writes.
+ * The others forward their clients' writes to it (FORWARD) and answer the client
+ * once its FORWARD_RESPONSE is back. The leader's SequencerMutex sends the seat
+ * changes to every follower before that response, on the same connection, so a
+ * follower has applied a write by the time it answers for it.
+ * <p>
+ * The leader is the highest live server, found with the bully algorithm over the
+ * Lamport connections: a server sends ELECTION to every higher server, any of which
+ * answers ELECTION_OK and takes the election over, and a server that gets no answer
+ * announces itself with COORDINATOR. Elections start when the leader is lost and
+ * when a server connects that is higher than the leader. Lost servers are
+ * reconnected by PeerNetwork as before.
+ * <p>
+ * A new leader only applies writes once every server has answered COORDINATOR_ACK,
+ * and a former leader answers only once its writes in progress are done, so two
+ * leaders never write at once.
+ */
+public class LeaderReplication {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private Server server;
+	private Logger log;
+	private PeerNetwork network;
+	private int serverID;
+	private LogicalClock clock;
+	private long timeoutMillis;
+	private boolean started;
+	private Thread electionThread;
+
+	private int leaderID = -1;				// -1 while unknown
+	private boolean leading;				// leader, and every server has acknowledged it
+	private Set<Integer> pendingAcks;		// servers yet to acknowledge us as leader
+	private long electionDeadline;			// 0 unless an election of ours is in progress
+	private boolean electionAnswered;		// a higher server took our election over
+	private int stepDownTo = -1;			// new leader to acknowledge once our writes are done
+	private int writesInProgress;			// writes being applied here as leader
+
+	private List<PendingWrite> queued;		// writes waiting for a leader
+	private Map<Integer, PendingWrite> forwarded;
+	private int nextForwardID;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 */
+	public LeaderReplication(Server server, PeerNetwork network) {
+		this.server = server;
+		this.log = server.getLogger("replication");
+		this.network = network;
+		this.serverID = server.getID();
+		clock = new LogicalClock(0);
+		timeoutMillis = server.getIntOption("heartbeat.timeout", 3000);
+		queued = new ArrayList<>();
+		forwarded = new HashMap<>();
+	}
+
+
+	/**
+	 * True for the messages handled here rather than by a mutex
+	 */
+	public static boolean handles(LamportMessageType type) {
+		return type == LamportMessageType.ELECTION || type == LamportMessageType.ELECTION_OK
+				|| type == LamportMessageType.COORDINATOR || type == LamportMessageType.COORDINATOR_ACK
+				|| type == LamportMessageType.FORWARD || type == LamportMessageType.FORWARD_RESPONSE;
+	}
+
+
+	/**
+	 * Hold the first election, once the initial connections are made, and start
+	 * the thread that times elections out
+	 */
+	public void start() {
+		synchronized (this) {
+			started = true;
+			startElection();
+		}
+		electionThread = server.getExecutionMode().startThread("LeaderElection", new Runnable() {
+			@Override
+			public void run() {
+				electionLoop();
+			}
+		});
+	}
+
+
+	/**
+	 * Stop the thread that times elections out, when the server shuts down
+	 */
+	public void stop() {
+		if(electionThread != null)
+			electionThread.interrupt();
+	}
+
+
+	/**
+	 * Apply a client's write here if we are the leader, or forward it to the
+	 * leader. Writes wait while no leader is known.
+	 */
+	public CompletableFuture<Map<String, String>> submit(EventInventory inventory, Map<String, String> request) {
+		PendingWrite write = new PendingWrite(inventory, request, -1);
+		synchronized (this) {
+			route(write);
+		}
+		return write.response;
+	}
+
+
+	/**
+	 * Process a received election message, forwarded request or response to one
+	 */
+	public void processMessage(LamportMessage lm) {
+		if(log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Processing message " + lm.toString());
+		clock.advance(lm.clock);
+
+		// the event may have to be created, which must not happen under our monitor
+		if(lm.type == LamportMessageType.FORWARD){
+			receiveForward(lm);
+			return;
+		}
+
+		synchronized (this) {
+			if(lm.type == LamportMessageType.ELECTION){
+				sendMessage(lm.serverID, LamportMessage.ELECTION_OK(serverID, clock));
+				if(leaderID == serverID)
+					sendMessage(lm.serverID, LamportMessage.COORDINATOR(serverID, clock));
+				else
+					startElection();
+
+			} else if(lm.type == LamportMessageType.ELECTION_OK){
+				// wait for the higher server's COORDINATOR, which may first have to
+				// hold its own election
+				if(electionDeadline != 0L){
+					electionAnswered = true;
+					electionDeadline = System.currentTimeMillis() + 2 * timeoutMillis;
+				}
+
+			} else if(lm.type == LamportMessageType.COORDINATOR){
+				receiveCoordinator(lm.serverID);
+
+			} else if(lm.type == LamportMessageType.COORDINATOR_ACK){
+				if(pendingAcks != null && pendingAcks.remove(lm.serverID) && pendingAcks.isEmpty())
+					startLeading();
+
+			} else if(lm.type == LamportMessageType.FORWARD_RESPONSE){
+				receiveResponse(lm);
+			}
+		}
+	}
+
+
+	/**
+	 * A server connected, or connected again. If we lead, it must acknowledge us
+	 * before we go on writing, since it may have been leading itself while cut off.
+	 * If it may be higher than the leader, hold an election.
+	 */
+	public synchronized void peerConnected(int otherServerID) {
+		if(!started)
+			return;
+		if(leaderID == serverID){
+			if(pendingAcks == null)
+				pendingAcks = new HashSet<>();
+			pendingAcks.add(otherServerID);
+			leading = false;
+			sendMessage(otherServerID, LamportMessage.COORDINATOR(serverID, clock));
+		} else if(serverID > leaderID)
+			startElection();
+	}
+
+
+	/**
+	 * Elect a new leader if the leader is gone. Writes forwarded to it without an
+	 * answer go to the next leader: as when a client retries on another server, one
+	 * that the old leader applied just before it was lost is then applied again.
+	 */
+	public synchronized void peerLost(int otherServerID) {
+		Iterator<PendingWrite> it = forwarded.values().iterator();
+		while(it.hasNext()){
+			PendingWrite write = it.next();
+			if(write.target == otherServerID){
+				it.remove();
+				write.target = -1;
+				queued.add(write);
+			}
+		}
+
+		if(stepDownTo == otherServerID)
+			stepDownTo = -1;
+		if(pendingAcks != null && pendingAcks.remove(otherServerID) && pendingAcks.isEmpty())
+			startLeading();
+		if(otherServerID == leaderID){
+			log.log(Level.WARNING, "Lost leader " + otherServerID + ": holding an election");
+			leaderID = -1;
+			startElection();
+		} else
+			routeQueued();
+	}
+
+
+//****************************************************************
+//	Election Methods
+//****************************************************************
+
+	/**
+	 * Send ELECTION to every higher live server, or lead if there is none -- must hold monitor
+	 */
+	private void startElection() {
+		if(!started || electionDeadline != 0L)
+			return;
+
+		boolean higher = false;
+		for(int i : network.getPeerIDs()){
+			if(i > serverID){
+				sendMessage(i, LamportMessage.ELECTION(serverID, clock));
+				higher = true;
+			}
+		}
+		if(!higher){
+			becomeLeader();
+			return;
+		}
+
+		log.log(Level.INFO, "Holding an election");
+		electionAnswered = false;
+		electionDeadline = System.currentTimeMillis() + timeoutMillis;
+		notifyAll();
+	}
+
+
+	/**
+	 * Announce ourselves to every live server, and wait for them to acknowledge -- must hold monitor
+	 */
+	private void becomeLeader() {
+		electionDeadline = 0L;
+		leaderID = serverID;
+		leading = false;
+		pendingAcks = new HashSet<>(network.getPeerIDs());
+
+		log.log(Level.INFO, "Won the election: waiting for " + pendingAcks + " to acknowledge");
+		network.broadcastMessage(LamportMessage.COORDINATOR(serverID, clock));
+		clock.increment();
+		if(pendingAcks.isEmpty())
+			startLeading();
+	}
+
+
+	/**
+	 * Every live server has acknowledged us: apply the writes that waited -- must hold monitor
+	 */
+	private void startLeading() {
+		pendingAcks = null;
+		leading = true;
+		log.log(Level.INFO, "Leading, with " + queued.size() + " writes waiting");
+		routeQueued();
+	}
+
+
+	/**
+	 * Follow the announced leader, unless we are higher. A former leader
+	 * acknowledges only once its writes in progress are done. -- must hold monitor
+	 */
+	private void receiveCoordinator(int otherServerID) {
+		if(otherServerID < serverID){
+			startElection();
+			return;
+		}
+
+		log.log(Level.INFO, "Server " + otherServerID + " is the leader");
+		electionDeadline = 0L;
+		leaderID = otherServerID;
+		leading = false;
+		pendingAcks = null;
+		if(writesInProgress == 0)
+			sendMessage(otherServerID, LamportMessage.COORDINATOR_ACK(serverID, clock));
+		else
+			stepDownTo = otherServerID;
+		routeQueued();
+	}
+
+
+	/**
+	 * Time elections out: without an answer from a higher server we lead, and
+	 * without a COORDINATOR after an answer we start over
+	 */
+	private synchronized void electionLoop() {
+		while(true){
+			try {
+				long now = System.currentTimeMillis();
+				if(electionDeadline == 0L)
+					wait();
+				else if(now < electionDeadline)
+					wait(electionDeadline - now);
+				else {
+					boolean answered = electionAnswered;
+					electionDeadline = 0L;
+					if(answered){
+						log.log(Level.WARNING, "No leader announced in time: holding a new election");
+						startElection();
+					} else
+						becomeLeader();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+//****************************************************************
+//	Forwarding Methods
+//****************************************************************
+
+	/**
+	 * Apply a write here, forward it to the leader, or queue it until there is one.
+	 * A write forwarded to us when we no longer lead fails, and its client tries
+	 * again. -- must hold monitor
+	 */
+	private void route(PendingWrite write) {
+		if(leaderID == serverID && leading)
+			applyLocally(write);
+		else if(leaderID < 0 || leaderID == serverID)
+			queued.add(write);
+		else if(write.from >= 0)
+			write.response.completeExceptionally(new IllegalStateException("Server " + serverID + " is not the leader"));
+		else
+			forward(write);
+	}
+
+
+	/**
+	 * Route every write that waited for a leader -- must hold monitor
+	 */
+	private void routeQueued() {
+		List<PendingWrite> writes = new ArrayList<>(queued);
+		queued.clear();
+		for(PendingWrite write : writes)
+			route(write);
+	}
+
+
+	/**
+	 * Hand a write to the batcher of its event, counting it until it is done -- must hold monitor
+	 */
+	private void applyLocally(final PendingWrite write) {
+		writesInProgress++;
+		write.inventory.submit(write.request).whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+			@Override
+			public void accept(Map<String, String> response, Throwable error) {
+				if(error != null)
+					write.response.completeExceptionally(error);
+				else
+					write.response.complete(response);
+				writeDone();
+			}
+		});
+	}
+
+
+	/**
+	 * A write applied here is done: acknowledge a new leader once none are left
+	 */
+	private synchronized void writeDone() {
+		writesInProgress--;
+		if(writesInProgress == 0 && stepDownTo >= 0){
+			sendMessage(stepDownTo, LamportMessage.COORDINATOR_ACK(serverID, clock));
+			stepDownTo = -1;
+		}
+	}
+
+
+	/**
+	 * Send a write to the leader -- must hold monitor
+	 */
+	private void forward(PendingWrite write) {
+		try {
+			String data = JsonCodec.writeString(write.request);
+			int forwardID = nextForwardID++;
+			write.target = leaderID;
+			forwarded.put(forwardID, write);
+			sendMessage(leaderID, LamportMessage.FORWARD(serverID, write.inventory.getID(), clock, forwardID, data));
+		} catch (IOException e) {
+			write.response.completeExceptionally(e);
+		}
+	}
+
+
+	/**
+	 * Take a write forwarded by another server, and send the response back once it
+	 * is done
+	 */
+	private void receiveForward(final LamportMessage lm) {
+		Map<String, String> request;
+		try {
+			request = JsonCodec.readStringMap(lm.data);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Bad forwarded request " + lm.data, e);
+			sendMessage(lm.serverID, LamportMessage.FORWARD_RESPONSE(serverID, clock, lm.requestID, LamportMessage.NO_DATA));
+			return;
+		}
+
+		PendingWrite write = new PendingWrite(server.getInventory(lm.event), request, lm.serverID);
+		write.response.whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+			@Override
+			public void accept(Map<String, String> response, Throwable error) {
+				String data = LamportMessage.NO_DATA;
+				if(error == null){
+					try {
+						data = JsonCodec.writeString(response);
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Failed to serialize response " + response, e);
+					}
+				} else if(log.isLoggable(Level.FINE))
+					log.log(Level.FINE, "Forwarded request " + lm.data + " failed: " + error.getMessage());
+				sendMessage(lm.serverID, LamportMessage.FORWARD_RESPONSE(serverID, clock, lm.requestID, data));
+			}
+		});
+		synchronized (this) {
+			route(write);
+		}
+	}
+
+
+	/**
+	 * Complete a forwarded write with the leader's response -- must hold monitor
+	 */
+	private void receiveResponse(LamportMessage lm) {
+		PendingWrite write = forwarded.remove(lm.requestID);
+		if(write == null)
+			return;
+		if(LamportMessage.NO_DATA.equals(lm.data)){
+			write.response.completeExceptionally(new IllegalStateException("Leader " + lm.serverID + " failed the request"));
+			return;
+		}
+		try {
+			write.response.complete(JsonCodec.readStringMap(lm.data));
+		} catch (IOException e) {
+			write.response.completeExceptionally(e);
+		}
+	}
+
+
+	/**
+	 * Send a message to another server, specified by their serverID
+	 */
+	private void sendMessage(int otherServerID, LamportMessage message) {
+		network.sendMessage(otherServerID, message);
+		clock.increment();
+	}
+
+
+//****************************************************************
+//	Private Classes
+//****************************************************************
+
+	/**
+	 * A write from a client, or forwarded by another server, on its way to the leader
+	 */
+	private static class PendingWrite {
+		final EventInventory inventory;
+		final Map<String, String> request;
+		final CompletableFuture<Map<String, String>> response;
+		final int from;				// forwarding server, -1 for our own clients
+		int target = -1;			// server the write was forwarded to
+
+		PendingWrite(EventInventory inventory, Map<String, String> request, int from) {
+			this.inventory = inventory;
+			this.request = request;
+			this.from = from;
+			this.response = new CompletableFuture<>();
+		}
+	}
+
+}
@@ -0,0 +1,454 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+/**
+ * Drives a cluster with many simulated clients, each on its own connection and
+ * speaking the client protocol, and reports the throughput and latency of each
+ * request type. Names are drawn from a Zipf distribution, so a few customers make
+ * most of the requests, as on a busy on-sale.
+ *
+ * In a closed loop, each client sends its next request when it has the answer to
+ * the last. In an open loop, requests arrive at a fixed total rate whether or not
+ * the cluster keeps up, and their latency counts from when they should have been
+ * sent, so a backlog shows up in the percentiles.
+ *
+ * With pipeline above 1, each client keeps up to that many requests in flight on
+ * its connection, through an AsyncClient, instead of one at a time.
+ */
+public class LoadGenerator {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private final List<InetSocketAddress> targets;
+	private final int nClients;
+	private final int pipeline;
+	private final int nSeats;
+	private final boolean openLoop;
+	private final double rate;
+	private final long thinkMillis;
+	private final int timeoutMillis;
+	private final ExecutionMode executionMode;
+	private final Requests[] requestTypes;
+	private final int[] cumulativeWeights;
+	private final double[] nameCdf;
+
+	private final Map<Requests, LatencyHistogram> latencies = new EnumMap<>(Requests.class);
+	private final AtomicLong errors = new AtomicLong();
+	private final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<>();
+	private long measureStart;
+	private long measureEnd;
+	private long backlog;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * A load generator for the servers taking clients at the given addresses,
+	 * configured by the options described in main()
+	 */
+	public LoadGenerator(List<InetSocketAddress> targets, Properties options) {
+		this.targets = targets;
+		nClients = Integer.parseInt(options.getProperty("clients", "100"));
+		pipeline = Math.max(1, Integer.parseInt(options.getProperty("pipeline", "1")));
+		nSeats = Integer.parseInt(options.getProperty("seats", "1000"));
+		openLoop = options.getProperty("mode", "closed").equalsIgnoreCase("open");
+		rate = Double.parseDouble(options.getProperty("rate", "1000"));
+		thinkMillis = Long.parseLong(options.getProperty("think", "0"));
+		timeoutMillis = Integer.parseInt(options.getProperty("timeout", "30000"));
+		executionMode = ExecutionMode.valueOf(options.getProperty("execution", "platform").toUpperCase());
+
+		String[] mix = options.getProperty("mix", "RESERVE:40,BOOKSEAT:10,SEARCH:40,DELETE:10").split(",");
+		requestTypes = new Requests[mix.length];
+		cumulativeWeights = new int[mix.length];
+		for (int i = 0; i < mix.length; i++) {
+			String[] toks = mix[i].split(":");
+			requestTypes[i] = Requests.valueOf(toks[0].trim().toUpperCase());
+			cumulativeWeights[i] = (i == 0 ? 0 : cumulativeWeights[i - 1]) + Integer.parseInt(toks[1].trim());
+			latencies.put(requestTypes[i], new LatencyHistogram());
+		}
+
+		nameCdf = zipfCdf(Integer.parseInt(options.getProperty("names", "" + 2 * nSeats)),
+				Double.parseDouble(options.getProperty("zipf", "0.99")));
+	}
+
+
+	/**
+	 * Run the clients through the warmup and the measurement, and wait for them to
+	 * finish. Only requests answered after the warmup are measured.
+	 */
+	public void run(long warmupSeconds, long durationSeconds) throws InterruptedException {
+		long now = System.nanoTime();
+		measureStart = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		measureEnd = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+		List<Thread> threads = new ArrayList<>();
+		if (openLoop)
+			threads.add(executionMode.startThread("LoadArrivals", new Runnable() {
+				@Override
+				public void run() {
+					scheduleArrivals();
+				}
+			}));
+		for (int i = 0; i < nClients; i++)
+			threads.add(executionMode.startThread("LoadClient-" + i, new SimulatedClient(i)));
+		for (Thread thread : threads)
+			thread.join();
+		backlog = arrivals.size();
+	}
+
+
+	/**
+	 * Print the throughput, errors and latency percentiles of the measurement
+	 */
+	public void report(PrintStream out) {
+		double seconds = (measureEnd - measureStart) / 1e9;
+		LatencyHistogram all = new LatencyHistogram();
+		for (LatencyHistogram latency : latencies.values())
+			all.add(latency);
+
+		out.println("Load: " + targets.size() + " servers, " + nClients + " clients"
+				+ (pipeline > 1 ? " with " + pipeline + " requests in flight each" : "") + ", "
+				+ (openLoop ? "open loop at " + rate + " requests/s" : "closed loop") + ", " + seconds + " s");
+		out.printf("Throughput: %.1f requests/s (%d requests, %d errors)%n", all.getCount() / seconds, all.getCount(), errors.get());
+		if (openLoop && backlog > 0)
+			out.println("Backlog: " + backlog + " requests were still waiting to be sent at the end: the cluster did not keep up");
+		out.println("Latency (us):");
+		for (Map.Entry<Requests, LatencyHistogram> entry : latencies.entrySet())
+			out.printf("  %-9s %s%n", entry.getKey(), entry.getValue());
+		out.printf("  %-9s %s%n", "ALL", all);
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Queue the time each request of the open loop is due, at the given rate,
+	 * until the measurement ends
+	 */
+	private void scheduleArrivals() {
+		long interval = (long) (1e9 / rate);
+		for (long due = System.nanoTime(); due < measureEnd; due += interval) {
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			arrivals.add(due);
+		}
+	}
+
+
+	/**
+	 * The cumulative Zipf distribution over n names with exponent s: name k is
+	 * picked in proportion to 1/(k+1)^s. s=0 picks names uniformly.
+	 */
+	private static double[] zipfCdf(int n, double s) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int k = 0; k < n; k++)
+			cdf[k] = sum += 1.0 / Math.pow(k + 1, s);
+		for (int k = 0; k < n; k++)
+			cdf[k] /= sum;
+		return cdf;
+	}
+
+
+	private String nextName(ThreadLocalRandom random) {
+		int k = Arrays.binarySearch(nameCdf, random.nextDouble());
+		return "customer" + Math.min(k < 0 ? -k - 1 : k, nameCdf.length - 1);
+	}
+
+
+	private Requests nextRequestType(ThreadLocalRandom random) {
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		int i = 0;
+		while (cumulativeWeights[i] <= pick)
+			i++;
+		return requestTypes[i];
+	}
+
+
+//****************************************************************
+//	SimulatedClient
+//****************************************************************
+
+	/**
+	 * One client connection, to server (id mod nServers) at first and to the next
+	 * server whenever a request fails
+	 */
+	private class SimulatedClient implements Runnable {
+		private int target;
+		private Socket socket;
+		private PrintWriter out;
+		private BufferedReader in;
+		private AsyncClient asyncClient;
+		private final Semaphore window = new Semaphore(pipeline);
+
+
+		SimulatedClient(int id) {
+			target = id % targets.size();
+		}
+
+
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				while (System.nanoTime() < measureEnd) {
+					long start = System.nanoTime();
+					if (openLoop) {
+						Long due = arrivals.poll(100, TimeUnit.MILLISECONDS);
+						if (due == null)
+							continue;
+						start = due;
+					}
+
+					Requests type = nextRequestType(random);
+					Map<String, String> request = new HashMap<>();
+					request.put(MessageFields.REQUEST.toString(), type.toString());
+					request.put(MessageFields.NAME.toString(), nextName(random));
+					if (type == Requests.BOOKSEAT)
+						request.put(MessageFields.SEATNUM.toString(), "" + (random.nextInt(nSeats) + 1));
+
+					if (pipeline > 1) {
+						if (!window.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+							failed(asyncClient);
+							window.acquire();
+						}
+						if (!openLoop)
+							start = System.nanoTime();
+						sendPipelined(type, request, start);
+					} else {
+						boolean answered = send(request);
+						record(type, start, answered);
+					}
+					if (thinkMillis > 0)
+						Thread.sleep(thinkMillis);
+				}
+				if (pipeline > 1)
+					window.tryAcquire(pipeline, timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+				if (asyncClient != null)
+					asyncClient.close();
+			}
+		}
+
+
+		private void record(Requests type, long start, boolean answered) {
+			long done = System.nanoTime();
+			if (answered && done >= measureStart && done < measureEnd)
+				latencies.get(type).record(TimeUnit.NANOSECONDS.toMicros(done - start));
+		}
+
+
+		/**
+		 * Send a request without waiting for the answer. When it comes, the request
+		 * is measured and its place in the window is freed. A failed request is
+		 * counted as an error, and the next one goes to the next server.
+		 */
+		private void sendPipelined(final Requests type, Map<String, String> request, final long start) {
+			final AsyncClient client;
+			synchronized (this) {
+				if (asyncClient == null) {
+					try {
+						asyncClient = new AsyncClient(targets.get(target), null);
+					} catch (IOException e) {
+						errors.incrementAndGet();
+						target = (target + 1) % targets.size();
+						window.release();
+						return;
+					}
+				}
+				client = asyncClient;
+			}
+			client.send(request).whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+				@Override
+				public void accept(Map<String, String> respMap, Throwable error) {
+					boolean answered = error == null && respMap.containsKey(MessageFields.MESSAGE.toString());
+					record(type, start, answered);
+					if (!answered) {
+						errors.incrementAndGet();
+						failed(client);
+					}
+					window.release();
+				}
+			});
+		}
+
+
+		/**
+		 * Give up on a connection whose requests fail or take too long, failing the
+		 * rest of its requests, and connect to the next server for the next one
+		 */
+		private void failed(AsyncClient client) {
+			synchronized (this) {
+				if (client == null || client != asyncClient)
+					return;
+				asyncClient = null;
+				target = (target + 1) % targets.size();
+			}
+			client.close();
+		}
+
+
+		/**
+		 * Send one request and wait for the answer. A failed request is counted as
+		 * an error, and the next one goes to the next server.
+		 */
+		private boolean send(Map<String, String> request) {
+			try {
+				if (socket == null)
+					connect();
+				JsonCodec.writeLine(request, out);
+				out.flush();
+				String line = in.readLine();
+				if (line == null)
+					throw new IOException("Server closed the connection");
+				if (JsonCodec.readStringMap(line).containsKey(MessageFields.MESSAGE.toString()))
+					return true;
+				throw new IOException("No message in response " + line);
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				close();
+				target = (target + 1) % targets.size();
+				return false;
+			}
+		}
+
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeoutMillis);
+			socket.connect(targets.get(target), timeoutMillis);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+
+		private void close() {
+			if (socket == null)
+				return;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			socket = null;
+		}
+	}
+
+
+//****************************************************************
+//	main()
+//****************************************************************
+
+	/**
+	 * Start a LocalCluster, or use running servers, and put it under load. Takes
+	 * key=value arguments:
+	 *
+	 * servers=3		number of servers to start in this JVM
+	 * connect=host:port,...	use these running servers instead
+	 * seats=1000		seats per server, or of the running servers
+	 * clients=100		simulated client connections
+	 * pipeline=1		requests each client keeps in flight on its connection
+	 * mode=closed		closed, or open for a fixed arrival rate
+	 * rate=1000		requests/s in the open loop, over all clients
+	 * warmup=5, duration=30	seconds
+	 * mix=RESERVE:40,BOOKSEAT:10,SEARCH:40,DELETE:10	request weights
+	 * names=2*seats, zipf=0.99	customer names and their skew
+	 * think=0			ms a client waits between requests
+	 * timeout=30000	ms to wait for an answer
+	 * execution=platform	or virtual threads for the clients
+	 * log=WARNING		server log level
+	 * server.key=value	any server option, e.g. server.mutex=suzuki_kasami
+	 *
+	 * Exits with 1 if the replicas of a LocalCluster disagree afterwards.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Properties options = new Properties();
+		List<String> serverOptions = new ArrayList<>();
+		for (String arg : args) {
+			String[] toks = arg.split("=", 2);
+			if (toks.length != 2) {
+				System.out.println("ERROR: arguments are key=value, e.g. servers=3 clients=1000 server.mutex=ricart_agrawala");
+				System.exit(-1);
+			}
+			if (toks[0].startsWith("server."))
+				serverOptions.add(toks[0].substring("server.".length()) + "=" + toks[1]);
+			else
+				options.setProperty(toks[0], toks[1]);
+		}
+
+		LocalCluster cluster = null;
+		List<InetSocketAddress> targets = new ArrayList<>();
+		if (options.containsKey("connect")) {
+			for (String address : options.getProperty("connect").split(",")) {
+				String[] toks = address.trim().split(":");
+				targets.add(new InetSocketAddress(toks[0], Integer.parseInt(toks[1])));
+			}
+		} else {
+			int nServers = Integer.parseInt(options.getProperty("servers", "3"));
+			System.out.println("Starting " + nServers + " servers with options " + serverOptions);
+			cluster = new LocalCluster(nServers, Integer.parseInt(options.getProperty("seats", "1000")), serverOptions);
+			cluster.setLogLevel(Level.parse(options.getProperty("log", "WARNING").toUpperCase()));
+			for (int port : cluster.getClientPorts())
+				targets.add(new InetSocketAddress("127.0.0.1", port));
+		}
+
+		LoadGenerator generator = new LoadGenerator(targets, options);
+		generator.run(Long.parseLong(options.getProperty("warmup", "5")), Long.parseLong(options.getProperty("duration", "30")));
+		generator.report(System.out);
+
+		int status = 0;
+		if (cluster != null) {
+			for (Server server : cluster.getServers()) {
+				Map<String, String> latencies = server.getMetrics().getLatencies();
+				System.out.println("Server " + (server.getID() + 1) + " CS wait (us):  " + latencies.get("cs.wait"));
+				System.out.println("Server " + (server.getID() + 1) + " CS hold (us):  " + latencies.get("cs.hold"));
+			}
+			List<String> problems = cluster.checkConsistency(EventInventory.DEFAULT_EVENT, 30000);
+			if (problems.isEmpty())
+				System.out.println("Consistency: every replica holds the same " + cluster.takenSeats(EventInventory.DEFAULT_EVENT)
+						+ " taken seats, and no name holds two");
+			else {
+				System.out.println("Consistency: " + problems.size() + " problems");
+				for (String problem : problems)
+					System.out.println("  " + problem);
+				status = 1;
+			}
+			cluster.close();
+		}
+		System.exit(status);
+	}
+
+}
@@ -0,0 +1,279 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * A cluster of servers in one JVM, on free loopback ports, for load tests and
+ * benchmarks. Each server gets a config file in a temporary directory, with the
+ * given key=value options and its data directory there as well, and is started
+ * exactly as run_server.sh would, connecting to the servers before it. The
+ * servers run until the cluster is closed, which also deletes the directory.
+ */
+public class LocalCluster implements Closeable {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final int START_TIMEOUT_MILLIS = 30000;
+
+	private final List<Server> servers = new ArrayList<>();
+	private final List<Integer> clientPorts;
+	private final File dir;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Start nServers servers with nSeats seats, and wait until every server is
+	 * connected to every other one and accepting clients
+	 */
+	public LocalCluster(int nServers, int nSeats, List<String> options) throws IOException {
+		clientPorts = freePorts(nServers);
+		dir = Files.createTempDirectory("cluster").toFile();
+
+		try {
+			start(nServers, nSeats, options);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * The servers, in order of server ID
+	 */
+	public List<Server> getServers() {
+		return Collections.unmodifiableList(servers);
+	}
+
+
+	/**
+	 * The port each server takes client connections on, in order of server ID
+	 */
+	public List<Integer> getClientPorts() {
+		return Collections.unmodifiableList(clientPorts);
+	}
+
+
+	/**
+	 * The log level of every server, e.g. WARNING to keep request logging out of
+	 * a load test
+	 */
+	public void setLogLevel(Level level) {
+		for (Server server : servers)
+			server.log.setLevel(level);
+	}
+
+
+	/**
+	 * Check that every server holds the same seats of an event, each seat with the
+	 * same name and version, and that no name holds more than one seat. Replicas
+	 * apply a RELEASE some time after the CS, so this waits up to timeoutMillis for
+	 * them to agree before reporting.
+	 *
+	 * @return a description of each problem found, empty if there are none
+	 */
+	public List<String> checkConsistency(String eventID, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		List<String> problems;
+		do {
+			problems = new ArrayList<>();
+			Map<Integer, SeatChange> first = seatsOf(servers.get(0), eventID);
+			for (Server server : servers.subList(1, servers.size()))
+				compare(first, seatsOf(server, eventID), server.getID(), problems);
+			if (problems.isEmpty())
+				break;
+			Thread.sleep(100);
+		} while (System.currentTimeMillis() < deadline);
+
+		for (Server server : servers) {
+			Map<String, Integer> seatOfName = new HashMap<>();
+			for (SeatChange seat : seatsOf(server, eventID).values()) {
+				if (seat.name.isEmpty())
+					continue;
+				Integer other = seatOfName.put(seat.name, seat.seat);
+				if (other != null)
+					problems.add("Server " + (server.getID() + 1) + ": " + seat.name + " holds seats "
+							+ (other + 1) + " and " + (seat.seat + 1));
+			}
+		}
+		return problems;
+	}
+
+
+	/**
+	 * The number of seats of an event taken on the first server
+	 */
+	public int takenSeats(String eventID) {
+		int taken = 0;
+		for (SeatChange seat : seatsOf(servers.get(0), eventID).values())
+			if (!seat.name.isEmpty())
+				taken++;
+		return taken;
+	}
+
+
+	/**
+	 * Shut every server down and delete the cluster's directory, with the
+	 * servers' configs, write-ahead logs, seat stores and log files
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Server server : servers)
+			server.shutdown();
+		if (dir.exists())
+			delete(dir);
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Start the servers one at a time, then their front ends
+	 */
+	private void start(int nServers, int nSeats, List<String> options) throws IOException {
+		for (int i = 0; i < nServers; i++) {
+			File config = new File(dir, "server" + (i + 1) + ".txt");
+			try (PrintWriter out = new PrintWriter(config)) {
+				out.println((i + 1) + " " + nServers + " " + nSeats);
+				for (int port : clientPorts)
+					out.println("127.0.0.1:" + port);
+				out.println("data.dir=" + new File(dir, "data"));
+				for (String option : options)
+					out.println(option);
+			}
+			// a server connects to every lower one before its constructor returns
+			servers.add(new Server(config.getPath(), false));
+		}
+
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+		for (Server server : servers)
+			while (server.getNetwork().getNumServers() < nServers)
+				pause(deadline, "server " + (server.getID() + 1) + " to connect to the others");
+
+		for (final Server server : servers) {
+			Thread frontEnd = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					server.run();
+				}
+			}, "ClientFrontEnd-" + server.getID());
+			frontEnd.setDaemon(true);
+			frontEnd.start();
+		}
+		for (Server server : servers)
+			while (!accepting(clientPorts.get(server.getID())))
+				pause(deadline, "server " + (server.getID() + 1) + " to accept clients");
+	}
+
+
+
+	/**
+	 * Every seat ever taken on a server, by seat number
+	 */
+	private static Map<Integer, SeatChange> seatsOf(Server server, String eventID) {
+		Map<Integer, SeatChange> seats = new HashMap<>();
+		for (SeatChange seat : server.getInventory(eventID).snapshot())
+			seats.put(seat.seat, seat);
+		return seats;
+	}
+
+
+	/**
+	 * Add a problem for each seat where another server differs from the first,
+	 * up to ten
+	 */
+	private static void compare(Map<Integer, SeatChange> first, Map<Integer, SeatChange> other, int otherID, List<String> problems) {
+		int found = 0;
+		for (int seat = 0, n = Math.max(maxSeat(first), maxSeat(other)); seat <= n; seat++) {
+			SeatChange a = first.get(seat);
+			SeatChange b = other.get(seat);
+			if (a == null && b == null || a != null && b != null && a.version == b.version && a.name.equals(b.name))
+				continue;
+			if (++found <= 10)
+				problems.add("Server " + (otherID + 1) + " differs from server 1 at seat " + (seat + 1) + ": "
+						+ (b == null ? "free" : b.name + "@" + b.version) + " vs " + (a == null ? "free" : a.name + "@" + a.version));
+		}
+		if (found > 10)
+			problems.add("Server " + (otherID + 1) + " differs from server 1 at " + (found - 10) + " more seats");
+	}
+
+
+	private static int maxSeat(Map<Integer, SeatChange> seats) {
+		return seats.isEmpty() ? -1 : Collections.max(seats.keySet());
+	}
+
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		Files.delete(file.toPath());
+	}
+
+
+	/**
+	 * True once a server takes client connections on the port
+	 */
+	private static boolean accepting(int port) {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	private static void pause(long deadline, String waitingFor) throws IOException {
+		if (System.currentTimeMillis() > deadline)
+			throw new IOException("Timed out waiting for " + waitingFor);
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + waitingFor);
+		}
+	}
+
+
+	/**
+	 * Client ports for nServers servers, each with the port above it free as well
+	 * for the Lamport channel
+	 */
+	private static List<Integer> freePorts(int nServers) throws IOException {
+		List<Integer> ports = new ArrayList<>();
+		while (ports.size() < nServers) {
+			try (ServerSocket client = new ServerSocket(0)) {
+				int port = client.getLocalPort();
+				if (ports.contains(port) || ports.contains(port - 1) || ports.contains(port + 1))
+					continue;
+				try {
+					new ServerSocket(port + 1).close();
+					ports.add(port);
+				} catch (IOException e) {
+					// taken: try another
+				}
+			}
+		}
+		return ports;
+	}
+
+}
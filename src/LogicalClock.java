@@ -1,18 +1,38 @@
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LogicalClock {
 
-	private int c=0;
+	// atomic rather than synchronized, so virtual threads never pin on the clock
+	private final AtomicInteger c;
 	
 	public LogicalClock(int c) {
-		this.c = c;
+		this.c = new AtomicInteger(c);
 	}
 	
 	public void increment(){
-		c++;
+		c.incrementAndGet();
+	}
+	
+	/**
+	 * Lamport receive rule: move past the larger of the two clocks
+	 */
+	public void advance(LogicalClock other){
+		int otherValue = other.value();
+		int current;
+		do {
+			current = c.get();
+		} while( !c.compareAndSet(current, Math.max(current, otherValue) + 1) );
+	}
+	
+	/**
+	 * Reset the clock, for a message that is decoded into again
+	 */
+	void set(int value){
+		c.set(value);
 	}
 	
 	public int value(){
-		return c;
+		return c.get();
 	}
 	
 }
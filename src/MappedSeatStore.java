@@ -0,0 +1,554 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Seat store in a memory-mapped file, off the Java heap. The file holds a header,
+ * a bitmap of taken seats, one fixed-width slot per seat, and an open-addressing
+ * hash index from name to seat. A slot holds the seat's version and name; names
+ * too long for the slot go to an append-only overflow file, and the slot holds
+ * their offset there.
+ * <p>
+ * The mapped pages outlive the process, so a restarted server picks up its seats
+ * as they were, without reading them in. If the process died without closing the
+ * store, the bitmap, index and digest are rebuilt from the slots; a seat that was
+ * being written at the time is reset, to be brought back by the write-ahead log
+ * or another server. Overflow names of seats changed since are not reclaimed.
+ */
+public class MappedSeatStore implements SeatStore {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final String SEATS_SUFFIX = ".seats";
+	private static final String NAMES_SUFFIX = ".names";
+	private static final int MAGIC = 0x53545231;
+	private static final int FORMAT = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_FORMAT = 4;
+	private static final int HEADER_SEATS = 8;
+	private static final int HEADER_CLEAN = 12;
+	private static final int HEADER_DIGEST = 16;
+
+	private static final int SLOT_WIDTH = 32;
+	private static final int SLOT_VERSION = 0;
+	private static final int SLOT_LENGTH = 4;
+	private static final int SLOT_NAME = 8;
+	private static final int INLINE_NAME = SLOT_WIDTH - SLOT_NAME;
+	private static final int IN_PROGRESS = -1;
+
+	private static final int INDEX_WIDTH = 8;
+	private static final byte[] FREE = new byte[0];
+
+	private int nSeats;
+	private int indexMask;
+	private FileChannel seatChannel;
+	private FileChannel nameChannel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer bitmap;
+	private MappedByteBuffer slots;
+	private MappedByteBuffer index;
+	private boolean closed;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor -- open the event's store in the given directory, or create it
+	 * with all seats free
+	 */
+	public MappedSeatStore(File dir, String eventID, int nSeats, Logger log) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create store directory " + dir);
+
+		long indexCapacity = 2;
+		while (indexCapacity < 2L * nSeats)
+			indexCapacity <<= 1;
+		long bitmapBytes = ((nSeats + 63L) >>> 6) * 8;
+		long slotBytes = (long) nSeats * SLOT_WIDTH;
+		long indexBytes = indexCapacity * INDEX_WIDTH;
+		if (slotBytes > Integer.MAX_VALUE || indexBytes > Integer.MAX_VALUE)
+			throw new IOException("Too many seats for a mapped store: " + nSeats);
+		this.nSeats = nSeats;
+		indexMask = (int) indexCapacity - 1;
+
+		File seatFile = fileFor(dir, eventID);
+		seatChannel = FileChannel.open(seatFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		nameChannel = FileChannel.open(new File(dir, encode(eventID) + NAMES_SUFFIX).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean existing = seatChannel.size() > 0;
+
+		long offset = 0;
+		header = seatChannel.map(FileChannel.MapMode.READ_WRITE, offset, HEADER_SIZE);
+		offset += HEADER_SIZE;
+		bitmap = seatChannel.map(FileChannel.MapMode.READ_WRITE, offset, bitmapBytes);
+		offset += bitmapBytes;
+		slots = seatChannel.map(FileChannel.MapMode.READ_WRITE, offset, slotBytes);
+		offset += slotBytes;
+		index = seatChannel.map(FileChannel.MapMode.READ_WRITE, offset, indexBytes);
+
+		if (existing) {
+			if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_FORMAT) != FORMAT)
+				throw new IOException(seatFile + " is not a seat store");
+			if (header.getInt(HEADER_SEATS) != nSeats)
+				throw new IOException(seatFile + " holds " + header.getInt(HEADER_SEATS) + " seats, not " + nSeats);
+			if (header.getInt(HEADER_CLEAN) == 0) {
+				log.warning("Seat store " + seatFile + " was not closed: rebuilding its index");
+				rebuild();
+			}
+		} else {
+			header.putInt(HEADER_MAGIC, MAGIC);
+			header.putInt(HEADER_FORMAT, FORMAT);
+			header.putInt(HEADER_SEATS, nSeats);
+		}
+		header.putInt(HEADER_CLEAN, 0);
+		header.force();
+	}
+
+
+	/**
+	 * IDs of the events with a store in the given directory
+	 */
+	public static List<String> listEvents(File dir) {
+		List<String> eventIDs = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return eventIDs;
+		for (File f : files)
+			if (f.getName().endsWith(SEATS_SUFFIX))
+				eventIDs.add(decode(f.getName().substring(0, f.getName().length() - SEATS_SUFFIX.length())));
+		return eventIDs;
+	}
+
+
+	@Override
+	public int size() {
+		return nSeats;
+	}
+
+
+	@Override
+	public String get(int seat) {
+		lock.readLock().lock();
+		try {
+			return new String(readName(slotBase(seat)), StandardCharsets.UTF_8);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public boolean isFree(int seat) {
+		lock.readLock().lock();
+		try {
+			return (bitmap.getLong((seat >>> 6) * 8) & (1L << seat)) == 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public int seatOf(String name) {
+		if (name == null || name.isEmpty())
+			return -1;
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			return index.getInt(probe(bytes, Arrays.hashCode(bytes)) * INDEX_WIDTH) - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public int nextFreeSeat() {
+		return nextFreeSeat(0, nSeats);
+	}
+
+
+	@Override
+	public int nextFreeSeat(int from, int to) {
+		lock.readLock().lock();
+		try {
+			int seat = nextClearBit(from);
+			return seat < Math.min(to, nSeats) ? seat : -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public SeatChange assign(int seat, String name) {
+		lock.writeLock().lock();
+		try {
+			int version = slots.getInt(slotBase(seat) + SLOT_VERSION) + 1;
+			write(seat, name, version);
+			return new SeatChange(seat, version, name);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void applyAll(List<SeatChange> changes) {
+		for (SeatChange change : changes)
+			slotBase(change.seat);
+		lock.writeLock().lock();
+		try {
+			for (SeatChange change : changes) {
+				if (change.version <= slots.getInt(slotBase(change.seat) + SLOT_VERSION))
+					continue;
+				write(change.seat, change.name, change.version);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public List<SeatChange> snapshot() {
+		lock.readLock().lock();
+		try {
+			List<SeatChange> snapshot = new ArrayList<>();
+			for (int i = 0; i < nSeats; i++) {
+				int version = slots.getInt(slotBase(i) + SLOT_VERSION);
+				if (version > 0)
+					snapshot.add(new SeatChange(i, version, new String(readName(slotBase(i)), StandardCharsets.UTF_8)));
+			}
+			return snapshot;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public long digest() {
+		lock.readLock().lock();
+		try {
+			return header.getLong(HEADER_DIGEST);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public List<String> toList() {
+		lock.readLock().lock();
+		try {
+			List<String> list = new ArrayList<>(nSeats);
+			for (int i = 0; i < nSeats; i++)
+				list.add(new String(readName(slotBase(i)), StandardCharsets.UTF_8));
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Flush the mapped pages and mark the store as closed cleanly, so the next
+	 * open need not rebuild the index
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			bitmap.force();
+			slots.force();
+			index.force();
+			header.putInt(HEADER_CLEAN, 1);
+			header.force();
+			seatChannel.close();
+			nameChannel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return toList().toString();
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Give a seat a new name and version, keeping the bitmap, index and digest in
+	 * step -- must hold write lock. The slot is marked as being written until its
+	 * new version is in, so a crash halfway through can be detected.
+	 */
+	private void write(int seat, String name, int version) {
+		if (closed)
+			throw new IllegalStateException("Seat store is closed");
+		int base = slotBase(seat);
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		long overflowOffset = bytes.length > INLINE_NAME ? appendOverflow(bytes) : -1;
+
+		int oldVersion = slots.getInt(base + SLOT_VERSION);
+		slots.putInt(base + SLOT_VERSION, IN_PROGRESS);
+
+		byte[] oldName = readName(base);
+		if (oldName.length > 0) {
+			int pos = probe(oldName, Arrays.hashCode(oldName));
+			if (index.getInt(pos * INDEX_WIDTH) == seat + 1)
+				removeIndexEntry(pos);
+		}
+
+		slots.putInt(base + SLOT_LENGTH, bytes.length);
+		if (overflowOffset >= 0) {
+			slots.putLong(base + SLOT_NAME, overflowOffset);
+		} else {
+			for (int i = 0; i < bytes.length; i++)
+				slots.put(base + SLOT_NAME + i, bytes[i]);
+		}
+
+		if (bytes.length == 0)
+			setTaken(seat, false);
+		else {
+			setTaken(seat, true);
+			addIndexEntry(seat, bytes);
+		}
+
+		slots.putInt(base + SLOT_VERSION, version);
+		header.putLong(HEADER_DIGEST, header.getLong(HEADER_DIGEST) + SeatStore.versionHash(seat, version)
+				- SeatStore.versionHash(seat, oldVersion));
+	}
+
+
+	/**
+	 * Rebuild the bitmap, index and digest from the slots, after a crash
+	 */
+	private void rebuild() {
+		for (int i = 0; i < bitmap.capacity(); i += 8)
+			bitmap.putLong(i, 0L);
+		for (int i = 0; i < index.capacity(); i += INDEX_WIDTH)
+			index.putLong(i, 0L);
+
+		long digest = 0;
+		for (int seat = 0; seat < nSeats; seat++) {
+			int base = slotBase(seat);
+			int version = slots.getInt(base + SLOT_VERSION);
+			if (version == IN_PROGRESS) {
+				slots.putInt(base + SLOT_LENGTH, 0);
+				slots.putInt(base + SLOT_VERSION, 0);
+				version = 0;
+			}
+			digest += SeatStore.versionHash(seat, version);
+			byte[] name = readName(base);
+			if (name.length > 0) {
+				setTaken(seat, true);
+				addIndexEntry(seat, name);
+			}
+		}
+		header.putLong(HEADER_DIGEST, digest);
+	}
+
+
+	/**
+	 * Index position holding the given name, or the empty position where it would go
+	 */
+	private int probe(byte[] name, int hash) {
+		int pos = home(hash);
+		while (true) {
+			int entry = index.getInt(pos * INDEX_WIDTH);
+			if (entry == 0)
+				return pos;
+			if (index.getInt(pos * INDEX_WIDTH + 4) == hash && nameEquals(slotBase(entry - 1), name))
+				return pos;
+			pos = (pos + 1) & indexMask;
+		}
+	}
+
+
+	/**
+	 * Point a name at a seat, replacing any other seat it pointed at -- the seat's
+	 * slot must hold the name already
+	 */
+	private void addIndexEntry(int seat, byte[] name) {
+		int hash = Arrays.hashCode(name);
+		int pos = probe(name, hash);
+		index.putInt(pos * INDEX_WIDTH, seat + 1);
+		index.putInt(pos * INDEX_WIDTH + 4, hash);
+	}
+
+
+	/**
+	 * Empty an index position, shifting back the entries after it that would
+	 * otherwise no longer be found
+	 */
+	private void removeIndexEntry(int pos) {
+		int next = pos;
+		while (true) {
+			next = (next + 1) & indexMask;
+			if (index.getInt(next * INDEX_WIDTH) == 0)
+				break;
+			int home = home(index.getInt(next * INDEX_WIDTH + 4));
+			boolean movable = next > pos ? (home <= pos || home > next) : (home <= pos && home > next);
+			if (movable) {
+				index.putLong(pos * INDEX_WIDTH, index.getLong(next * INDEX_WIDTH));
+				pos = next;
+			}
+		}
+		index.putLong(pos * INDEX_WIDTH, 0L);
+	}
+
+
+	private int home(int hash) {
+		int h = hash * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & indexMask;
+	}
+
+
+	private int slotBase(int seat) {
+		if (seat < 0 || seat >= nSeats)
+			throw new IndexOutOfBoundsException("Seat " + seat + " of " + nSeats);
+		return seat * SLOT_WIDTH;
+	}
+
+
+	/**
+	 * UTF-8 name held by the slot at the given offset, empty for a free seat
+	 */
+	private byte[] readName(int base) {
+		int length = slots.getInt(base + SLOT_LENGTH);
+		if (length == 0)
+			return FREE;
+		byte[] name = new byte[length];
+		if (length <= INLINE_NAME) {
+			for (int i = 0; i < length; i++)
+				name[i] = slots.get(base + SLOT_NAME + i);
+			return name;
+		}
+
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(name);
+			long position = slots.getLong(base + SLOT_NAME);
+			while (buf.hasRemaining()) {
+				int n = nameChannel.read(buf, position + buf.position());
+				if (n < 0)
+					throw new IOException("Overflow name of " + length + " bytes cut short");
+			}
+			return name;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	private boolean nameEquals(int base, byte[] name) {
+		int length = slots.getInt(base + SLOT_LENGTH);
+		if (length != name.length)
+			return false;
+		if (length > INLINE_NAME)
+			return Arrays.equals(readName(base), name);
+		for (int i = 0; i < length; i++)
+			if (slots.get(base + SLOT_NAME + i) != name[i])
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * Add a long name to the end of the overflow file
+	 *
+	 * @return its offset in the file
+	 */
+	private long appendOverflow(byte[] name) {
+		try {
+			long offset = nameChannel.size();
+			ByteBuffer buf = ByteBuffer.wrap(name);
+			while (buf.hasRemaining())
+				nameChannel.write(buf, offset + buf.position());
+			return offset;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	private void setTaken(int seat, boolean taken) {
+		int word = (seat >>> 6) * 8;
+		long bits = bitmap.getLong(word);
+		bitmap.putLong(word, taken ? bits | (1L << seat) : bits & ~(1L << seat));
+	}
+
+
+	/**
+	 * First seat at or after from that is not taken, or nSeats if there is none
+	 */
+	private int nextClearBit(int from) {
+		if (from >= nSeats)
+			return nSeats;
+		int word = from >>> 6;
+		long free = ~bitmap.getLong(word * 8) & (-1L << from);
+		int nWords = bitmap.capacity() / 8;
+		while (free == 0) {
+			if (++word >= nWords)
+				return nSeats;
+			free = ~bitmap.getLong(word * 8);
+		}
+		return Math.min(word * 64 + Long.numberOfTrailingZeros(free), nSeats);
+	}
+
+
+	/**
+	 * File of an event's store, named after the event
+	 */
+	private static File fileFor(File dir, String eventID) {
+		return new File(dir, encode(eventID) + SEATS_SUFFIX);
+	}
+
+
+	private static String encode(String eventID) {
+		try {
+			return URLEncoder.encode(eventID, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); // UTF-8 is always supported
+		}
+	}
+
+
+	private static String decode(String fileName) {
+		try {
+			return URLDecoder.decode(fileName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); // UTF-8 is always supported
+		}
+	}
+
+}
@@ -2,5 +2,7 @@ public enum MessageFields {
 	REQUEST,
 	NAME,
 	SEATNUM,
-	MESSAGE
+	MESSAGE,
+	EVENT,
+	ID
 }
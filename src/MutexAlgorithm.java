@@ -0,0 +1,53 @@
+
+/**
+ * The mutual exclusion algorithms a server can use, chosen with the "mutex"
+ * option. Every server must use the same one. Messages per CS entry, with N live
+ * servers:
+ * <ul>
+ * <li>LAMPORT: REQUEST, ACK and RELEASE, 3(N-1). The RELEASE carries the seat changes.</li>
+ * <li>RICART_AGRAWALA: REQUEST and a deferred REPLY, 2(N-1), plus N-1 updates if
+ * the CS changed any seats.</li>
+ * <li>SUZUKI_KASAMI: a REQUEST broadcast and the token, N, or none if the token is
+ * here already, plus N-1 updates if the CS changed any seats.</li>
+ * <li>SEQUENCER: none, plus N-1 updates if the CS changed any seats. Used by
+ * replication=leader, where only the leader enters the CS; it cannot be chosen
+ * with the mutex option.</li>
+ * </ul>
+ */
+public enum MutexAlgorithm {
+
+	LAMPORT {
+		@Override
+		public DistributedMutex newMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+			return new LamportMutex(network, server, inventory, partition);
+		}
+	},
+
+	RICART_AGRAWALA {
+		@Override
+		public DistributedMutex newMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+			return new RicartAgrawalaMutex(network, server, inventory, partition);
+		}
+	},
+
+	SUZUKI_KASAMI {
+		@Override
+		public DistributedMutex newMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+			return new SuzukiKasamiMutex(network, server, inventory, partition);
+		}
+	},
+
+	SEQUENCER {
+		@Override
+		public DistributedMutex newMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+			return new SequencerMutex(network, server, inventory, partition);
+		}
+	};
+
+
+	/**
+	 * Create the mutex of one partition of an event
+	 */
+	public abstract DistributedMutex newMutex(PeerNetwork network, Server server, EventInventory inventory, int partition);
+
+}
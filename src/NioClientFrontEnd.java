@@ -0,0 +1,354 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class NioClientFrontEnd {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private Server server;
+	private Logger log;
+	private int tcpPort;
+	private Selector selector;
+	private ByteBuffer readBuffer;
+	private int pipeline;
+	private ExecutorService workers;
+	private Queue<Connection> pendingWrites;
+	private volatile boolean closed;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 *
+	 * @param nWorkers	size of the worker pool that parses requests and runs reads,
+	 * 					unless the server runs on virtual threads
+	 * @param pipeline	most requests with an ID processed at once for one connection,
+	 * 					and most requests read ahead of their written responses
+	 */
+	public NioClientFrontEnd(Server server, int tcpPort, int nWorkers, int pipeline) {
+		this.server = server;
+		this.log = server.getLogger("client");
+		this.tcpPort = tcpPort;
+		this.pipeline = pipeline;
+		workers = server.getExecutionMode().newExecutor(nWorkers);
+		pendingWrites = new ConcurrentLinkedQueue<>();
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * Run the selector loop. Accepts client connections, frames incoming bytes into
+	 * JSON lines, and writes back responses as they complete. Returns once closed.
+	 */
+	public void run() throws IOException {
+		selector = Selector.open();
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(tcpPort));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			log.info("Starting NIO listen loop on port " + tcpPort);
+
+			while (!closed) {
+				selector.select();
+				registerPendingWrites();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept(serverChannel);
+						if (key.isValid() && key.isReadable())
+							read(key);
+						if (key.isValid() && key.isWritable())
+							write(key);
+					} catch (IOException e) {
+						log.warning("IOException! Client probably disconnected: " + e.getMessage());
+						close(key);
+					}
+				}
+			}
+
+			for (SelectionKey key : selector.keys())
+				if (key.attachment() != null)
+					close(key);
+		} finally {
+			selector.close();
+			workers.shutdown();
+		}
+	}
+
+
+	/**
+	 * Stop the selector loop, which closes every client connection and the port
+	 */
+	public void close() {
+		closed = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Accept a new client connection
+	 */
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		// pipelined responses go out while earlier ones are unacknowledged
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+		server.getMetrics().clientConnected();
+		log.info("Accepted TCP connection from " + channel.socket().getInetAddress() + " on port "
+				+ channel.socket().getLocalPort());
+	}
+
+
+	/**
+	 * Read available bytes from a client and dispatch any complete lines
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		readBuffer.clear();
+		int n = conn.channel.read(readBuffer);
+		if (n < 0) {
+			log.fine("Closing connection to client " + conn.channel.socket().getInetAddress());
+			close(key);
+			return;
+		}
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				String line = new String(conn.partialLine.toByteArray(), StandardCharsets.UTF_8).trim();
+				conn.partialLine.reset();
+				if (!line.isEmpty()) {
+					synchronized (conn) {
+						conn.lines.add(line);
+					}
+				}
+			} else if (conn.partialLine.size() >= MAX_LINE_LENGTH) {
+				log.warning("Request line too long from " + conn.channel.socket().getInetAddress() + ": closing");
+				close(key);
+				return;
+			} else {
+				conn.partialLine.write(b);
+			}
+		}
+		dispatchNext(conn);
+		updateInterest(conn);
+	}
+
+
+	/**
+	 * Hand the next request line of a connection to the workers. Lines are parsed
+	 * one at a time. A request without an ID holds back the lines after it until it
+	 * is answered, so such a client gets its responses in request order. Once a
+	 * request with an ID is parsed, the next line is handed on, up to the pipeline
+	 * limit, and responses go out as they complete.
+	 */
+	private void dispatchNext(final Connection conn) {
+		final String line;
+		synchronized (conn) {
+			if (conn.busy || conn.inFlight >= pipeline || conn.lines.isEmpty())
+				return;
+			conn.busy = true;
+			conn.inFlight++;
+			line = conn.lines.poll();
+		}
+
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Map<String, String> receivedMap = server.parseRequest(line);
+				if (receivedMap == null) {
+					closeLater(conn);
+					return;
+				}
+				final boolean pipelined = receivedMap.containsKey(MessageFields.ID.toString());
+				if (pipelined) {
+					synchronized (conn) {
+						conn.busy = false;
+					}
+					dispatchNext(conn);
+				}
+				if (log.isLoggable(Level.FINE))
+					log.fine("Received request map " + receivedMap + " from " + conn.channel.socket().getInetAddress());
+				server.submitRequest(receivedMap).whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+					@Override
+					public void accept(Map<String, String> respMap, Throwable error) {
+						if (error != null || respMap == null) {
+							log.warning("Request " + receivedMap + " failed: " + error);
+							closeLater(conn);
+							return;
+						}
+						if (log.isLoggable(Level.FINE))
+							log.fine("Sending response map " + respMap + " to " + conn.channel.socket().getInetAddress());
+						byte[] response = server.serializeResponse(respMap);
+						synchronized (conn) {
+							if (response != null) {
+								conn.writes.add(ByteBuffer.wrap(response));
+								conn.unwritten++;
+							}
+							if (!pipelined)
+								conn.busy = false;
+							conn.inFlight--;
+						}
+						pendingWrites.add(conn);
+						selector.wakeup();
+					}
+				});
+			}
+		});
+	}
+
+
+	/**
+	 * Write queued responses to a client
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer buf;
+		while ((buf = conn.writes.peek()) != null) {
+			conn.channel.write(buf);
+			if (buf.hasRemaining())
+				return; // socket buffer full, wait for the next OP_WRITE
+			conn.writes.poll();
+			synchronized (conn) {
+				conn.unwritten--;
+			}
+		}
+		if (conn.closeAfterWrites) {
+			close(key);
+			return;
+		}
+		updateInterest(conn);
+	}
+
+
+	/**
+	 * Called on the selector thread: move connections with new responses on to
+	 * their next request line, and register write interest for the responses
+	 */
+	private void registerPendingWrites() {
+		Connection conn;
+		while ((conn = pendingWrites.poll()) != null) {
+			if (!conn.key.isValid())
+				continue;
+			if (conn.closeAfterWrites && conn.writes.isEmpty()) {
+				close(conn.key);
+				continue;
+			}
+			dispatchNext(conn);
+			updateInterest(conn);
+		}
+	}
+
+
+	/**
+	 * Called on the selector thread: write to a client while it has responses
+	 * queued, and read from it only while it has fewer than pipeline requests
+	 * waiting, in flight or unwritten. A client that sends without reading its
+	 * responses is left in its socket buffers, not in our memory.
+	 */
+	private void updateInterest(Connection conn) {
+		if (!conn.key.isValid())
+			return;
+		int ops = 0;
+		synchronized (conn) {
+			if (conn.lines.size() + conn.inFlight + conn.unwritten < pipeline)
+				ops = SelectionKey.OP_READ;
+		}
+		if (!conn.writes.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		conn.key.interestOps(ops);
+	}
+
+
+	/**
+	 * Close a connection from a worker thread, once queued responses are written
+	 */
+	private void closeLater(Connection conn) {
+		conn.closeAfterWrites = true;
+		pendingWrites.add(conn);
+		selector.wakeup();
+	}
+
+
+	/**
+	 * Close a client connection
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		if (!key.channel().isOpen())
+			return;
+		server.getMetrics().clientDisconnected();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+//****************************************************************
+//	Private Classes
+//****************************************************************
+
+	/**
+	 * Per-connection state: the current partial line, complete lines waiting for
+	 * a worker, requests being processed, and responses waiting to be written. The
+	 * read buffer is shared, so idle connections cost only a few small objects.
+	 * The counts are guarded by the connection's monitor.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+		final Queue<String> lines = new ArrayDeque<>();
+		final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+		boolean busy;
+		int inFlight;
+		int unwritten;
+		volatile boolean closeAfterWrites;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+}
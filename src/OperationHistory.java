@@ -0,0 +1,364 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The operations this server has applied, for catching up servers that rejoin.
+ * An operation is one released CS request, with the seat changes made in it.
+ * Every server numbers its own operations with its CS request IDs, which only go
+ * up, in a stream named after the server and the time it started -- so a restarted
+ * server starts a new stream instead of reusing indexes.
+ * <p>
+ * For every stream the history keeps the ranges of indexes applied. Indexes can
+ * arrive out of order, since RELEASEs of different partitions race, and a server
+ * that dies while waiting for the CS leaves a gap for good. The most recent
+ * operations are also kept whole, so a server that missed only those can be sent
+ * just them.
+ */
+public class OperationHistory {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private String localStream;
+	private int capacity;
+	private Map<String, TreeMap<Integer, Integer>> applied = new HashMap<>();
+	private Map<String, TreeMap<Integer, Operation>> recentByStream = new HashMap<>();
+	private ArrayDeque<Operation> recent = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity	how many recent operations to keep whole
+	 */
+	public OperationHistory(String localStream, int capacity) {
+		this.localStream = localStream;
+		this.capacity = Math.max(0, capacity);
+	}
+
+
+	/**
+	 * Name of the stream of this server's own operations
+	 */
+	public String getLocalStream() {
+		return localStream;
+	}
+
+
+	/**
+	 * Note that an operation has been applied, and keep it as a recent one
+	 *
+	 * @return false if it had been applied already
+	 */
+	public boolean record(String stream, int index, String eventID, List<SeatChange> changes) {
+		lock.lock();
+		try {
+			TreeMap<Integer, Integer> ranges = applied.get(stream);
+			if (ranges == null) {
+				ranges = new TreeMap<>();
+				applied.put(stream, ranges);
+			}
+			if (contains(ranges, index))
+				return false;
+			addRange(ranges, index, index);
+
+			if (capacity > 0) {
+				Operation op = new Operation(stream, index, eventID, changes);
+				recent.addLast(op);
+				TreeMap<Integer, Operation> byIndex = recentByStream.get(stream);
+				if (byIndex == null) {
+					byIndex = new TreeMap<>();
+					recentByStream.put(stream, byIndex);
+				}
+				byIndex.put(index, op);
+				if (recent.size() > capacity) {
+					Operation oldest = recent.removeFirst();
+					recentByStream.get(oldest.stream).remove(oldest.index);
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * True if the given operation has been applied here
+	 */
+	public boolean isApplied(String stream, int index) {
+		lock.lock();
+		try {
+			TreeMap<Integer, Integer> ranges = applied.get(stream);
+			return ranges != null && contains(ranges, index);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * The recent operations that are applied here but not in the given state of
+	 * another server, or null if some of them are no longer kept
+	 */
+	public List<Operation> missingFrom(Map<String, TreeMap<Integer, Integer>> otherApplied) {
+		lock.lock();
+		try {
+			List<Operation> missing = new ArrayList<>();
+			for (Map.Entry<String, TreeMap<Integer, Integer>> entry : applied.entrySet()) {
+				TreeMap<Integer, Integer> theirs = otherApplied.get(entry.getKey());
+				TreeMap<Integer, Operation> byIndex = recentByStream.get(entry.getKey());
+				for (Map.Entry<Integer, Integer> range : entry.getValue().entrySet()) {
+					for (int[] gap : subtract(range.getKey(), range.getValue(), theirs)) {
+						int count = byIndex == null ? 0 : byIndex.subMap(gap[0], true, gap[1], true).size();
+						if (count != gap[1] - gap[0] + 1)
+							return null;
+						missing.addAll(byIndex.subMap(gap[0], true, gap[1], true).values());
+					}
+				}
+			}
+			return missing;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Add the applied operations of another server, after taking over its seats
+	 * with a snapshot
+	 */
+	public void merge(Map<String, TreeMap<Integer, Integer>> otherApplied) {
+		lock.lock();
+		try {
+			for (Map.Entry<String, TreeMap<Integer, Integer>> entry : otherApplied.entrySet()) {
+				TreeMap<Integer, Integer> ranges = applied.get(entry.getKey());
+				if (ranges == null) {
+					ranges = new TreeMap<>();
+					applied.put(entry.getKey(), ranges);
+				}
+				for (Map.Entry<Integer, Integer> range : entry.getValue().entrySet())
+					addRange(ranges, range.getKey(), range.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Copy of the applied ranges of every stream
+	 */
+	public Map<String, TreeMap<Integer, Integer>> getApplied() {
+		lock.lock();
+		try {
+			Map<String, TreeMap<Integer, Integer>> copy = new HashMap<>();
+			for (Map.Entry<String, TreeMap<Integer, Integer>> entry : applied.entrySet())
+				copy.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+			return copy;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Write applied ranges as a JSON object of stream to [[first,last],...]
+	 */
+	public static void writeApplied(JsonGenerator gen, Map<String, TreeMap<Integer, Integer>> ranges) throws IOException {
+		gen.writeStartObject();
+		for (Map.Entry<String, TreeMap<Integer, Integer>> entry : ranges.entrySet()) {
+			gen.writeArrayFieldStart(entry.getKey());
+			for (Map.Entry<Integer, Integer> range : entry.getValue().entrySet()) {
+				gen.writeStartArray();
+				gen.writeNumber(range.getKey());
+				gen.writeNumber(range.getValue());
+				gen.writeEndArray();
+			}
+			gen.writeEndArray();
+		}
+		gen.writeEndObject();
+	}
+
+
+	/**
+	 * Read applied ranges written by writeApplied. The parser must be on the
+	 * START_OBJECT token.
+	 */
+	public static Map<String, TreeMap<Integer, Integer>> readApplied(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT)
+			throw new IOException("Expected an object of applied operations");
+		Map<String, TreeMap<Integer, Integer>> result = new HashMap<>();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			TreeMap<Integer, Integer> ranges = new TreeMap<>();
+			result.put(parser.getCurrentName(), ranges);
+			if (parser.nextToken() != JsonToken.START_ARRAY)
+				throw new IOException("Expected an array of ranges");
+			while (parser.nextToken() == JsonToken.START_ARRAY) {
+				parser.nextToken();
+				int first = parser.getIntValue();
+				parser.nextToken();
+				int last = parser.getIntValue();
+				if (parser.nextToken() != JsonToken.END_ARRAY)
+					throw new IOException("Expected the end of a range");
+				addRange(ranges, first, last);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Write applied ranges to a snapshot
+	 */
+	public static void writeApplied(DataOutputStream out, Map<String, TreeMap<Integer, Integer>> ranges) throws IOException {
+		out.writeInt(ranges.size());
+		for (Map.Entry<String, TreeMap<Integer, Integer>> entry : ranges.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (Map.Entry<Integer, Integer> range : entry.getValue().entrySet()) {
+				out.writeInt(range.getKey());
+				out.writeInt(range.getValue());
+			}
+		}
+	}
+
+
+	/**
+	 * Read applied ranges written to a snapshot
+	 */
+	public static Map<String, TreeMap<Integer, Integer>> readApplied(DataInputStream in) throws IOException {
+		Map<String, TreeMap<Integer, Integer>> result = new HashMap<>();
+		int nStreams = in.readInt();
+		for (int i = 0; i < nStreams; i++) {
+			TreeMap<Integer, Integer> ranges = new TreeMap<>();
+			result.put(in.readUTF(), ranges);
+			int nRanges = in.readInt();
+			for (int j = 0; j < nRanges; j++) {
+				int first = in.readInt();
+				addRange(ranges, first, in.readInt());
+			}
+		}
+		return result;
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private static boolean contains(TreeMap<Integer, Integer> ranges, int index) {
+		Map.Entry<Integer, Integer> range = ranges.floorEntry(index);
+		return range != null && range.getValue() >= index;
+	}
+
+
+	/**
+	 * Add [first, last] to a set of disjoint ranges, joining ranges that touch
+	 */
+	private static void addRange(TreeMap<Integer, Integer> ranges, int first, int last) {
+		Map.Entry<Integer, Integer> before = ranges.floorEntry(first);
+		if (before != null && (long) before.getValue() + 1 >= first) {
+			first = before.getKey();
+			last = Math.max(last, before.getValue());
+		}
+		Map.Entry<Integer, Integer> next;
+		while ((next = ranges.ceilingEntry(first)) != null && next.getKey() <= (long) last + 1) {
+			last = Math.max(last, next.getValue());
+			ranges.remove(next.getKey());
+		}
+		ranges.put(first, last);
+	}
+
+
+	/**
+	 * The parts of [first, last] not in the given ranges
+	 */
+	private static List<int[]> subtract(int first, int last, TreeMap<Integer, Integer> ranges) {
+		List<int[]> gaps = new ArrayList<>();
+		long from = first;
+		if (ranges != null) {
+			Map.Entry<Integer, Integer> before = ranges.floorEntry(first);
+			if (before != null && before.getValue() >= first)
+				from = (long) before.getValue() + 1;
+			for (Map.Entry<Integer, Integer> range : ranges.subMap(first, false, last, true).entrySet()) {
+				if (range.getKey() > from)
+					gaps.add(new int[] { (int) from, range.getKey() - 1 });
+				from = Math.max(from, (long) range.getValue() + 1);
+			}
+		}
+		if (from <= last)
+			gaps.add(new int[] { (int) from, last });
+		return gaps;
+	}
+
+
+//****************************************************************
+//	Public Classes
+//****************************************************************
+
+	/**
+	 * One applied operation: the seat changes of a released CS request
+	 */
+	public static class Operation {
+		final String stream;
+		final int index;
+		final String eventID;
+		final List<SeatChange> changes;
+
+		Operation(String stream, int index, String eventID, List<SeatChange> changes) {
+			this.stream = stream;
+			this.index = index;
+			this.eventID = eventID;
+			this.changes = changes;
+		}
+
+
+		/**
+		 * Write as [stream,index,event,[[seat,version,name],...]]
+		 */
+		void write(JsonGenerator gen) throws IOException {
+			gen.writeStartArray();
+			gen.writeString(stream);
+			gen.writeNumber(index);
+			gen.writeString(eventID);
+			SeatChange.write(gen, changes);
+			gen.writeEndArray();
+		}
+
+
+		/**
+		 * Read an operation written by write. The parser must be on its START_ARRAY token.
+		 */
+		static Operation read(JsonParser parser) throws IOException {
+			parser.nextToken();
+			String stream = parser.getValueAsString();
+			parser.nextToken();
+			int index = parser.getIntValue();
+			parser.nextToken();
+			String eventID = parser.getValueAsString();
+			parser.nextToken();
+			List<SeatChange> changes = SeatChange.read(parser);
+			if (parser.nextToken() != JsonToken.END_ARRAY)
+				throw new IOException("Expected the end of an operation");
+			return new Operation(stream, index, eventID, changes);
+		}
+	}
+
+}
@@ -0,0 +1,542 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead log of the seat changes applied on this server, local and remote,
+ * plus periodic snapshots of every event. A restarted server loads the newest
+ * snapshot and replays the log segments written after it, before it talks to
+ * any other server.
+ * <p>
+ * Appends go to a memory buffer; one sync thread writes and fsyncs everything
+ * buffered so far in one go, so concurrent batches share an fsync. Seat changes
+ * carry versions, so replaying a change that is already in the snapshot is
+ * harmless, and records need no particular order. Records name the operation
+ * they belong to, so the OperationHistory is recovered along with the seats.
+ */
+public class OperationLog {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+	private static final int SNAPSHOT_MAGIC = 0x53454155;
+
+	/**
+	 * Stream of records that are not operations, e.g. seats from a snapshot
+	 */
+	public static final String NO_STREAM = "";
+
+	private Server server;
+	private Logger log;
+	private File dir;
+	private int snapshotRecords;
+	private FileChannel segmentChannel;
+	private long segment;
+	private ByteArrayOutputStream buffer;
+	private long appendedSeq;
+	private long durableSeq;
+	private int recordsSinceSnapshot;
+	private boolean snapshotRunning;
+	private boolean failed;
+	private boolean closed;
+	private Thread syncThread;
+	private Thread snapshotThread;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition durable = lock.newCondition();
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 *
+	 * @param dir				directory for log segments and snapshots, created if needed
+	 * @param snapshotRecords	how many records to log before taking a new snapshot
+	 */
+	public OperationLog(Server server, File dir, int snapshotRecords) {
+		this.server = server;
+		this.log = server.getLogger("wal");
+		this.dir = dir;
+		this.snapshotRecords = Math.max(1, snapshotRecords);
+		buffer = new ByteArrayOutputStream(4096);
+	}
+
+
+	/**
+	 * Load the newest snapshot and replay later log segments into the server's
+	 * events, then open a new segment and start the sync thread
+	 */
+	public void recover() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create data directory " + dir);
+
+		long start = System.nanoTime();
+		long covered = -1;
+		TreeMap<Long, File> snapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		for (Long n : snapshots.descendingKeySet()) {
+			try {
+				loadSnapshot(snapshots.get(n));
+				covered = n;
+				break;
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Skipping bad snapshot " + snapshots.get(n) + ": " + e.getMessage());
+			}
+		}
+
+		int records = 0;
+		long lastSegment = covered;
+		for (Map.Entry<Long, File> entry : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX).entrySet()) {
+			lastSegment = Math.max(lastSegment, entry.getKey());
+			if (entry.getKey() > covered)
+				records += replaySegment(entry.getValue());
+		}
+		log.info("Recovered from " + (covered < 0 ? "no snapshot" : "snapshot " + covered) + " and " + records
+				+ " log records in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+		segment = lastSegment + 1;
+		segmentChannel = openSegment(segment);
+		recordsSinceSnapshot = records;
+
+		syncThread = server.getExecutionMode().startThread("OperationLogSync", new Runnable() {
+			@Override
+			public void run() {
+				syncLoop();
+			}
+		});
+	}
+
+
+	/**
+	 * Write and fsync what is appended so far, stop the sync thread once a snapshot
+	 * in progress is done, and close the log, when the server shuts down
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (syncThread != null)
+				syncThread.join();
+			if (snapshotThread != null)
+				snapshotThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (segmentChannel != null)
+			segmentChannel.close();
+	}
+
+
+	/**
+	 * Add the changes applied to an event to the log. They are durable once
+	 * awaitDurable returns for the returned sequence number. Once the log has
+	 * failed, nothing writes records any more, so they are dropped rather than
+	 * buffered: the changes are applied already, and stay in memory only.
+	 *
+	 * @param stream	stream of the operation the changes belong to, or NO_STREAM
+	 * @param index		index of the operation in its stream
+	 */
+	public long append(String stream, int index, String eventID, List<SeatChange> changes) {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 24 * changes.size());
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeString(out, stream);
+			out.writeInt(index);
+			writeString(out, eventID);
+			writeChanges(out, changes);
+			out.flush();
+			record = bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen with a byte array
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+
+		lock.lock();
+		try {
+			if (failed)
+				return appendedSeq;
+			DataOutputStream out = new DataOutputStream(buffer);
+			out.writeInt(record.length);
+			out.writeInt((int) crc.getValue());
+			out.write(record);
+			appended.signal();
+			return ++appendedSeq;
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen with a byte array
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Block until every record up to the given sequence number is on disk. Returns
+	 * at once if the log has failed; the failure has been logged.
+	 */
+	public void awaitDurable(long seq) {
+		lock.lock();
+		try {
+			while (durableSeq < seq && !failed)
+				durable.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Loop until closed: write and fsync whatever has been appended, then wake up
+	 * the waiters. Starts a snapshot every snapshotRecords records.
+	 */
+	private void syncLoop() {
+		while (true) {
+			byte[] bytes;
+			long seq;
+			boolean startSnapshot = false;
+			lock.lock();
+			try {
+				while (buffer.size() == 0 && !closed)
+					appended.awaitUninterruptibly();
+				if (buffer.size() == 0)
+					return;
+				bytes = buffer.toByteArray();
+				buffer.reset();
+				seq = appendedSeq;
+				recordsSinceSnapshot += (int) (seq - durableSeq);
+				if (recordsSinceSnapshot >= snapshotRecords && !snapshotRunning) {
+					snapshotRunning = true;
+					recordsSinceSnapshot = 0;
+					startSnapshot = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(bytes);
+				while (buf.hasRemaining())
+					segmentChannel.write(buf);
+				segmentChannel.force(false);
+				if (startSnapshot)
+					rollSegment();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Write-ahead log failed: changes are no longer durable", e);
+				lock.lock();
+				try {
+					failed = true;
+					buffer.reset();
+					durable.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+
+			lock.lock();
+			try {
+				durableSeq = seq;
+				durable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Start a new segment, and snapshot everything logged in the ones before it
+	 * on a separate thread -- called by the sync thread
+	 */
+	private void rollSegment() throws IOException {
+		final long covered = segment;
+		segmentChannel.close();
+		segment++;
+		segmentChannel = openSegment(segment);
+
+		snapshotThread = server.getExecutionMode().startThread("OperationLogSnapshot", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(covered);
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Snapshot failed: keeping the log", e);
+				} finally {
+					lock.lock();
+					try {
+						snapshotRunning = false;
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Write every event to a new snapshot through a FileChannel, then drop the log
+	 * segments and snapshots it replaces. Every change in segments up to covered
+	 * is already in the events, since changes are applied before they are logged.
+	 */
+	private void writeSnapshot(long covered) throws IOException {
+		long start = System.nanoTime();
+		File tmp = new File(dir, SNAPSHOT_PREFIX + covered + SNAPSHOT_SUFFIX + ".tmp");
+		File target = new File(dir, SNAPSHOT_PREFIX + covered + SNAPSHOT_SUFFIX);
+		int nEvents = 0;
+
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(covered);
+			// operations first: the seats read after them can only be newer
+			OperationHistory.writeApplied(out, server.getHistory().getApplied());
+			for (EventInventory inventory : server.getInventories()) {
+				out.writeBoolean(true);
+				writeString(out, inventory.getID());
+				writeChanges(out, inventory.snapshot());
+				nEvents++;
+			}
+			out.writeBoolean(false);
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		// the rename must be durable before the files it replaces go
+		syncDirectory();
+
+		for (Map.Entry<Long, File> entry : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX).entrySet())
+			if (entry.getKey() <= covered)
+				Files.deleteIfExists(entry.getValue().toPath());
+		for (Map.Entry<Long, File> entry : listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).entrySet())
+			if (entry.getKey() < covered)
+				Files.deleteIfExists(entry.getValue().toPath());
+
+		log.info("Wrote snapshot " + covered + " of " + nEvents + " events in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+
+	/**
+	 * Load a snapshot into the server's events, checking it is complete first
+	 */
+	private void loadSnapshot(File file) throws IOException {
+		List<String> eventIDs = new ArrayList<>();
+		List<List<SeatChange>> eventChanges = new ArrayList<>();
+		Map<String, TreeMap<Integer, Integer>> applied;
+
+		try (FileInputStream fin = new FileInputStream(file)) {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fin, 64 * 1024), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a snapshot");
+			in.readLong();
+			applied = OperationHistory.readApplied(in);
+			while (in.readBoolean()) {
+				eventIDs.add(readString(in));
+				eventChanges.add(readChanges(in));
+			}
+			long expected = checked.getChecksum().getValue();
+			if (in.readLong() != expected)
+				throw new IOException("Checksum mismatch");
+		} catch (EOFException e) {
+			throw new IOException("Snapshot is truncated");
+		}
+
+		for (int i = 0; i < eventIDs.size(); i++)
+			server.getInventory(eventIDs.get(i)).restoreChanges(eventChanges.get(i));
+		server.getHistory().merge(applied);
+	}
+
+
+	/**
+	 * Replay the records of a log segment. A torn record at the end, left by a
+	 * crash in the middle of a write, is cut off.
+	 *
+	 * @return the number of records replayed
+	 */
+	private int replaySegment(File file) throws IOException {
+		int records = 0;
+		long goodLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int crcValue = in.readInt();
+				if (length < 0 || length > file.length())
+					break;
+				byte[] record = new byte[length];
+				in.readFully(record);
+				CRC32 crc = new CRC32();
+				crc.update(record, 0, length);
+				if ((int) crc.getValue() != crcValue)
+					break;
+
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				String stream = readString(recordIn);
+				int index = recordIn.readInt();
+				String eventID = readString(recordIn);
+				List<SeatChange> changes = readChanges(recordIn);
+				server.getInventory(eventID).restoreChanges(changes);
+				if (!stream.equals(NO_STREAM))
+					server.getHistory().record(stream, index, eventID, changes);
+				goodLength += 8 + length;
+				records++;
+			}
+		} catch (EOFException e) {
+			// torn record
+		}
+
+		if (goodLength < file.length()) {
+			log.warning("Cutting off torn record at byte " + goodLength + " of " + file);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(goodLength);
+			}
+		}
+		return records;
+	}
+
+
+	/**
+	 * Open a segment for appending, creating it if need be. A new segment's entry
+	 * in the directory is made durable, or forcing the records in it would not be
+	 * enough to find them after a crash.
+	 */
+	private FileChannel openSegment(long n) throws IOException {
+		File file = new File(dir, SEGMENT_PREFIX + n + SEGMENT_SUFFIX);
+		boolean created = !file.exists();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if (created)
+			syncDirectory();
+		return channel;
+	}
+
+
+	/**
+	 * Force the data directory's entries, the names of files created, renamed and
+	 * deleted in it, to disk. Not every platform can open a directory, and there
+	 * is nothing more to do there.
+	 */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// cannot sync a directory here
+		}
+	}
+
+
+	/**
+	 * Files named prefix + number + suffix in the data directory, by number
+	 */
+	private TreeMap<Long, File> listFiles(String prefix, String suffix) {
+		TreeMap<Long, File> files = new TreeMap<>();
+		File[] all = dir.listFiles();
+		if (all == null)
+			return files;
+		for (File f : all) {
+			String name = f.getName();
+			if (!name.startsWith(prefix) || !name.endsWith(suffix))
+				continue;
+			try {
+				files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), f);
+			} catch (NumberFormatException e) {
+				// not ours
+			}
+		}
+		return files;
+	}
+
+
+	private static void writeChanges(DataOutputStream out, List<SeatChange> changes) throws IOException {
+		out.writeInt(changes.size());
+		for (SeatChange change : changes) {
+			out.writeInt(change.seat);
+			out.writeInt(change.version);
+			writeString(out, change.name);
+		}
+	}
+
+
+	private static List<SeatChange> readChanges(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<SeatChange> changes = new ArrayList<>(Math.min(n, 1 << 16));
+		for (int i = 0; i < n; i++) {
+			int seat = in.readInt();
+			int version = in.readInt();
+			changes.add(new SeatChange(seat, version, readString(in)));
+		}
+		return changes;
+	}
+
+
+	/**
+	 * Length-prefixed UTF-8, since names may be longer than writeUTF allows
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Bad string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,15 @@
+/**
+ * A DistributedMutex that can tell when every CS ordered before a read has been
+ * applied here, so read.consistency=ordered can answer reads from the local
+ * replica without entering the CS. Only LamportMutex can: every request and
+ * release reaches every server, in timestamp order.
+ */
+public interface OrderedReads {
+
+	/**
+	 * Block until every CS request with a timestamp before the given one has been
+	 * released and its data applied
+	 */
+	void awaitAppliedBefore(int timestamp);
+
+}
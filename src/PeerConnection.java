@@ -0,0 +1,269 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Lamport connection to one other server, as kept in the PeerNetwork registry.
+ * Messages are not written by the thread that sends them but queued, and written
+ * in order by a writer thread of this connection, so a broadcast goes out to all
+ * servers at once and a slow server only holds up its own messages.
+ * <p>
+ * The writer takes every message queued since its last write, up to a batch, and
+ * writes them with a single flush. Sending never waits, since senders hold a
+ * mutex lock and waiting there would hold up the messages of every other server
+ * too. The queue is bounded at admission instead: once it reaches capacity, new
+ * batches wait in awaitRoom, holding no lock, until the writer has brought it
+ * down to half or the connection is closed.
+ */
+public class PeerConnection {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final long ROOM_MILLIS = 100;
+
+	final int id;
+	final Socket socket;
+	final DataInputStream in;
+	final DataOutputStream out;
+	final LamportCodec codec;
+	volatile long lastHeard;
+	volatile String peerStream;
+	volatile CatchUp pendingCatchUp;
+	volatile CountDownLatch catchUpDone;
+
+	private final BlockingQueue<LamportMessage> outbox;
+	private final int capacity;
+	private final int maxBatch;
+	private final AtomicInteger unsent;
+	private final AtomicInteger maxUnsent;
+	private final AtomicLong messagesWritten;
+	private final AtomicLong writes;
+	private final AtomicLong blockedBatches;
+	private final AtomicBoolean full;
+	private final Object room = new Object();
+	private final Server server;
+	private final Logger log;
+	private Thread writer;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor. Nothing is written until startWriter is called.
+	 *
+	 * @param capacity most messages queued before new batches wait
+	 * @param maxBatch most messages written with one flush
+	 */
+	public PeerConnection(Server server, int id, Socket socket, DataInputStream in, DataOutputStream out, LamportCodec codec,
+			int capacity, int maxBatch) {
+		this.server = server;
+		this.log = server.getLogger("network");
+		this.id = id;
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+		this.codec = codec;
+		this.capacity = Math.max(1, capacity);
+		this.maxBatch = Math.max(1, maxBatch);
+		outbox = new LinkedBlockingQueue<>();
+		unsent = new AtomicInteger();
+		maxUnsent = new AtomicInteger();
+		messagesWritten = new AtomicLong();
+		writes = new AtomicLong();
+		blockedBatches = new AtomicLong();
+		full = new AtomicBoolean();
+		lastHeard = System.nanoTime();
+	}
+
+
+	/**
+	 * Queue a message to be written after every message queued before it. Never
+	 * waits, even over capacity: callers may hold a mutex lock.
+	 */
+	public void send(LamportMessage message) {
+		int queued = unsent.incrementAndGet();
+		maxUnsent.accumulateAndGet(queued, Math::max);
+		outbox.add(message);
+		if(queued >= capacity && full.compareAndSet(false, true))
+			log.log(Level.WARNING, "Queue to server " + id + " is full at " + capacity + " messages: new batches wait");
+	}
+
+
+	/**
+	 * Queue a message unless the queue is over capacity
+	 *
+	 * @return false if the message was dropped
+	 */
+	public boolean trySend(LamportMessage message) {
+		if(unsent.get() >= capacity)
+			return false;
+		send(message);
+		return true;
+	}
+
+
+	/**
+	 * Wait from when the queue reaches capacity until the writer has brought it
+	 * down to half, or the connection is closed. Must not be called holding a
+	 * mutex lock.
+	 */
+	public void awaitRoom() throws InterruptedException {
+		if(!full.get())
+			return;
+		blockedBatches.incrementAndGet();
+		synchronized (room) {
+			while(full.get() && !socket.isClosed())
+				room.wait(ROOM_MILLIS);
+		}
+	}
+
+
+	/**
+	 * Start writing queued messages. Anything written straight to the stream before,
+	 * like the handshake, goes out ahead of them.
+	 */
+	public synchronized void startWriter() {
+		if(writer != null)
+			return;
+		writer = server.getExecutionMode().startThread("LamportWriter-" + id, new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		});
+	}
+
+
+	/**
+	 * Number of messages queued or being written
+	 */
+	public int getUnsent() {
+		return unsent.get();
+	}
+
+
+	/**
+	 * Most messages ever queued or being written at once
+	 */
+	public int getMaxUnsent() {
+		return maxUnsent.get();
+	}
+
+
+	/**
+	 * Number of messages written so far
+	 */
+	public long getMessagesWritten() {
+		return messagesWritten.get();
+	}
+
+
+	/**
+	 * Number of flushes so far, each writing one batch of messages
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+
+	/**
+	 * Number of batches that had to wait for room in the queue
+	 */
+	public long getBlockedBatches() {
+		return blockedBatches.get();
+	}
+
+
+	/**
+	 * Wait until every queued message is written, or the time is up
+	 *
+	 * @return true if nothing is left to write
+	 */
+	public boolean drain(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		while(unsent.get() > 0 && !socket.isClosed()){
+			if(System.currentTimeMillis() >= deadline)
+				return false;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return unsent.get() == 0;
+	}
+
+
+	/**
+	 * Close the socket, which ends the listener loop, and stop the writer
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Failed to close connection to server " + id + ": " + e.getMessage());
+		}
+		synchronized (this) {
+			if(writer != null)
+				writer.interrupt();
+		}
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Write queued messages, a batch per flush, until the connection is closed
+	 */
+	private void writerLoop() {
+		List<LamportMessage> batch = new ArrayList<>(maxBatch);
+		try {
+			while(true){
+				batch.add(outbox.take());
+				outbox.drainTo(batch, maxBatch - 1);
+				try {
+					for(LamportMessage message : batch){
+						codec.write(message, out);
+						server.getMetrics().messageSent(id, message.type);
+					}
+					out.flush();
+					messagesWritten.addAndGet(batch.size());
+					writes.incrementAndGet();
+				} finally {
+					unsent.addAndGet(-batch.size());
+					batch.clear();
+				}
+				if(full.get() && unsent.get() < capacity / 2 && full.compareAndSet(true, false)){
+					log.log(Level.INFO, "Queue to server " + id + " has room again");
+					synchronized (room) {
+						room.notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			// the listener loop notices the dead connection and clears comms
+			log.log(Level.WARNING, "Failed to send message to server " + id + ": " + e.getMessage());
+			close();
+		}
+	}
+
+}
@@ -0,0 +1,826 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Lamport channel between servers: one socket per peer, shared by the
+ * mutexes of all events and seat partitions. Handles connection setup, the
+ * INIT_REQUEST/INIT_RESPOND handshake with its catch-up (see CatchUp), and hands
+ * CS messages to the mutex of the event and partition they are for.
+ * <p>
+ * Every server sends a HEARTBEAT on each connection every heartbeat interval. A
+ * server not heard from within the heartbeat timeout is evicted: its connection is
+ * closed, which also unblocks any write stuck on it, and it is handled like a
+ * server that died. Of two servers that lose their connection, the one with the
+ * higher ID keeps trying to connect again, so a server that was only hung or cut
+ * off is re-admitted, caught up, once it answers again.
+ * <p>
+ * Peers are kept in a registry by ID (see PeerConnection), and the members of the
+ * cluster in a second map by ID, starting from the server file. A server started
+ * with "restart" connects to any member that answers, learns the live members from
+ * its INIT_RESPOND and connects to those, so a server can also join a running
+ * cluster under an ID the others were not configured with. A server that shuts
+ * down sends LEAVE, and the others stop trying to reconnect to it.
+ */
+public class PeerNetwork {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final int SNAPSHOT_CHUNK_SEATS = 4096;
+	private static final int RECONNECT_MILLIS = 500;
+	private static final int LEAVE_MILLIS = 1000;
+	private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+	private Map<Integer, InetSocketAddress> members;
+	private Map<Integer, PeerConnection> peers;
+	private LogicalClock clock;
+	private long heartbeatMillis;
+	private long timeoutNanos;
+	private LamportCodec preferredCodec;
+	private int queueCapacity;
+	private int queueBatch;
+	private AtomicInteger nextRequestID;
+	private int serverID;
+	private Server server;
+	private Logger log;
+	private ServerSocket serverSocket;
+	private Thread connectThread;
+	private List<Thread> heartbeatThreads;
+	private boolean restart;
+	private volatile boolean closed;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 */
+	public PeerNetwork(List<InetAddress> servers, List<Integer> ports, Server server, boolean restart) {
+		this.server = server;
+		this.log = server.getLogger("network");
+		this.serverID = server.getID();
+		this.restart = restart;
+		nextRequestID = new AtomicInteger();
+		heartbeatThreads = new ArrayList<>();
+		clock = new LogicalClock(0);
+		members = new ConcurrentHashMap<>();
+		for (int i = 0; i < servers.size(); i++)
+			members.put(i, new InetSocketAddress(servers.get(i), ports.get(i)));
+		peers = new ConcurrentHashMap<>();
+		heartbeatMillis = server.getIntOption("heartbeat.interval", 500);
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.getIntOption("heartbeat.timeout", 3000));
+		preferredCodec = LamportCodec.valueOf(server.getOption("peer.codec", "binary").toUpperCase());
+		queueCapacity = server.getIntOption("peer.queue", 8192);
+		queueBatch = server.getIntOption("peer.batch", 64);
+
+		try {
+			serverSocket = new ServerSocket(members.get(serverID).getPort()+1);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Initialize Lamport connections, including listening for incoming connections
+	 * And attempting to connect to other servers
+	 */
+	public void init(){
+		startConnectionThread();
+		if(heartbeatMillis > 0)
+			startHeartbeatThreads();
+		connectToOtherServers(restart);
+	}
+
+
+	/**
+	 * Tell every live server that this one is leaving, so they do not try to
+	 * reconnect to it, and give the message a moment to go out
+	 */
+	public void leave() {
+		if(peers.isEmpty())
+			return;
+		log.log(Level.INFO, "Leaving the cluster");
+		broadcastMessage(LamportMessage.LEAVE(serverID, clock));
+		for (PeerConnection peer : peers.values())
+			peer.drain(LEAVE_MILLIS);
+	}
+
+
+	/**
+	 * Stop for good: stop accepting, reconnecting and sending heartbeats, and close
+	 * every connection, which ends its listener and writer threads. Call leave
+	 * first to keep the other servers from reconnecting.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Failed to close Lamport server socket: " + e.getMessage());
+		}
+		for (Thread thread : heartbeatThreads)
+			thread.interrupt();
+		for (PeerConnection peer : peers.values())
+			peer.close();
+	}
+
+
+	/**
+	 * Number of live servers, including this one
+	 */
+	public int getNumServers() {
+		return peers.size() + 1;
+	}
+
+
+	/**
+	 * IDs of the servers there is a live connection to, in order
+	 */
+	public Set<Integer> getPeerIDs() {
+		return new TreeSet<>(peers.keySet());
+	}
+
+
+	/**
+	 * The live connections, for their queue depths and write counts
+	 */
+	public Collection<PeerConnection> getConnections() {
+		return new ArrayList<>(peers.values());
+	}
+
+
+	/**
+	 * True if there is a live connection to the given server
+	 */
+	public boolean isConnected(int otherServerID) {
+		return peers.containsKey(otherServerID);
+	}
+
+
+	/**
+	 * Lowest ID of this server and the servers it is connected to
+	 */
+	public int getLowestLiveServer() {
+		int lowest = serverID;
+		for (int i : peers.keySet())
+			lowest = Math.min(lowest, i);
+		return lowest;
+	}
+
+
+	/**
+	 * A new request ID, unique across all partitions of this server
+	 */
+	public int nextRequestID() {
+		return nextRequestID.getAndIncrement();
+	}
+
+
+	/**
+	 * Name of the stream of another server's operations, as told in the handshake
+	 */
+	public String getPeerStream(int otherServerID) {
+		PeerConnection peer = peers.get(otherServerID);
+		return peer == null ? null : peer.peerStream;
+	}
+
+
+	/**
+	 * Send a message to another server, specified by their serverID. The message
+	 * is queued on the connection, behind every message sent to that server before.
+	 */
+	public void sendMessage(int otherServerID, LamportMessage message) {
+		PeerConnection peer = peers.get(otherServerID);
+		if( peer != null ){
+			if(log.isLoggable(Level.FINEST))
+				log.log(Level.FINEST, "Sending message " + message + " to server " + otherServerID);
+			peer.send(message);
+		}
+	}
+
+
+	/**
+	 * Wait until no server's queue is full. Called before a batch asks for the CS,
+	 * holding no lock, so a slow server slows down new work instead of the messages
+	 * to and from the other servers.
+	 */
+	public void awaitRoom() throws InterruptedException {
+		for (PeerConnection peer : peers.values())
+			peer.awaitRoom();
+	}
+
+
+	/**
+	 * Broadcast message to all other listening servers. Each connection writes it
+	 * on its own thread, so the servers get it in parallel.
+	 */
+	public void broadcastMessage(LamportMessage msg) {
+		if(log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Broadcasting message " + msg + " to all servers");
+		for (PeerConnection peer : peers.values())
+			peer.send(msg);
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Start the infinite TCP listening thread
+	 */
+	private void startConnectionThread(){
+		log.log(Level.INFO, "Lamport Mutex initating connections");
+
+		// start eternal socket acceptance loop
+		connectThread = server.getExecutionMode().startThread("LamportConnect", new Runnable(){
+			@Override
+			public void run() {
+				connectionLoop();
+			}
+		});
+	}
+
+
+	/**
+	 * Start sending heartbeats, and watching for servers that stopped sending theirs.
+	 * These are separate threads, so a send blocked on a hung server cannot keep
+	 * that server from being evicted.
+	 */
+	private void startHeartbeatThreads(){
+		log.log(Level.INFO, "Lamport heartbeats every " + heartbeatMillis + " ms, timeout "
+				+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+
+		heartbeatThreads.add(server.getExecutionMode().startThread("LamportHeartbeat", new Runnable(){
+			@Override
+			public void run() {
+				while(!closed){
+					// sent without logging, which would drown out everything else at FINEST.
+					// A full queue is skipped: the server has messages coming anyway
+					LamportMessage heartbeat = LamportMessage.HEARTBEAT(serverID, clock);
+					for (PeerConnection peer : peers.values())
+						peer.trySend(heartbeat);
+					if(!sleep(heartbeatMillis))
+						return;
+				}
+			}
+		}));
+
+		heartbeatThreads.add(server.getExecutionMode().startThread("LamportFailureDetector", new Runnable(){
+			@Override
+			public void run() {
+				while(!closed){
+					long now = System.nanoTime();
+					for (PeerConnection peer : peers.values()){
+						long silence = now - peer.lastHeard;
+						if (silence > timeoutNanos)
+							evict(peer, silence);
+					}
+					if(!sleep(heartbeatMillis))
+						return;
+				}
+			}
+		}));
+	}
+
+
+	/**
+	 * Drop the connection to a server that stopped sending heartbeats. Its
+	 * listener loop sees the closed socket and clears comms.
+	 */
+	private void evict(PeerConnection peer, long silence){
+		log.log(Level.WARNING, "No message from server " + peer.id + " for "
+				+ TimeUnit.NANOSECONDS.toMillis(silence) + " ms: evicting it");
+		peer.close();
+	}
+
+
+	/**
+	 * Keep trying to connect to a server again after losing the connection, until
+	 * it is back or has left. It may also connect to us first, after a restart.
+	 */
+	private void startReconnectThread(final int iServer){
+		server.getExecutionMode().startThread("LamportReconnect-" + iServer, new Runnable(){
+			@Override
+			public void run() {
+				log.log(Level.INFO, "Trying to reconnect to server " + iServer);
+				while(!closed && !peers.containsKey(iServer)){
+					InetSocketAddress address = members.get(iServer);
+					if(address == null){
+						log.log(Level.INFO, "Server " + iServer + " has left: no longer trying to reconnect");
+						return;
+					}
+					try {
+						Socket sock = new Socket();
+						sock.connect(lamportAddress(address), Client.TIMEOUT);
+						initOutgoingConnection(sock, iServer);
+					} catch (IOException e) {
+						log.log(Level.FINER, "Lamport connection NOT made to server " + iServer);
+					}
+					if(!peers.containsKey(iServer) && !sleep(RECONNECT_MILLIS))
+						return;
+				}
+				log.log(Level.INFO, "Reconnected to server " + iServer);
+			}
+		});
+	}
+
+
+	/**
+	 * Sleep, returning false if interrupted
+	 */
+	private boolean sleep(long millis){
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * TCP connection listener loop, until the network is closed
+	 */
+	private void connectionLoop(){
+		while(!closed){
+			log.log(Level.FINER, "Listenining for connection on port "+ serverSocket.getLocalPort());
+			try {
+				// set up connection from unknown server
+				Socket sock = serverSocket.accept();
+				initIncomingConnection(sock);
+			} catch (IOException e) {
+				if(!closed)
+					e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Connect to the other Lamport servers. If "restart==false", this will attempt to
+	 * connect only to members with id < this.serverID. If "restart==true", this will
+	 * attempt to connect to any member, and then to every member that one reports live.
+	 */
+	private void connectToOtherServers(boolean restart){
+		// if restarting, start by assuming that you must connect to all other servers
+		// this will be updated after connecting to one live server
+		// otherwise, on a fresh startup, connect to all servers with serverID less than yours
+		Set<Integer> toConnect = new TreeSet<>();
+		for (int i : members.keySet())
+			if (i != serverID && (restart || i < serverID))
+				toConnect.add(i);
+		Set<Integer> connected = new HashSet<>();
+		boolean joined = !restart;
+
+		while(!connected.containsAll(toConnect)) {
+			for (int iServer : toConnect) {
+				if (connected.contains(iServer))
+					continue;
+				if (peers.containsKey(iServer) || !members.containsKey(iServer)){
+					// it reconnected to us first, or it has left
+					connected.add(iServer);
+					continue;
+				}
+
+				log.fine("Entering connect loop for iServer = " + iServer);
+				Socket sock = new Socket();
+				try{
+					sock.connect(lamportAddress(members.get(iServer)), Client.TIMEOUT);
+				} catch (IOException e) {
+					// could not connect. Wait 1/2 second and move on
+					sleep(RECONNECT_MILLIS);
+					log.log(Level.FINER, "Lamport connection NOT made to server "+iServer);
+					continue;
+				}
+
+				try {
+					Set<Integer> live = initOutgoingConnection(sock, iServer);
+					if (live == null) {
+						sleep(RECONNECT_MILLIS);
+						continue;
+					}
+					connected.add(iServer);
+					if (!joined) {
+						// connect to the live servers only, whatever the server file says
+						joined = true;
+						live.remove(serverID);
+						toConnect = new TreeSet<>(live);
+						break;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		log.fine("Finished in ctor connection loop");
+	}
+
+
+	/**
+	 * Initialize a new incoming connection. The handshake is always JSON; the
+	 * connection then switches to the codec we accept from the INIT_REQUEST.
+	 */
+	private void initIncomingConnection(Socket sock) throws IOException{
+		log.log(Level.FINER, "Initializing connection with new server");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER_BYTES));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+
+		// listen for INIT message from unknown server
+		LamportMessage lm = receiveMessage(in, LamportCodec.JSON);
+
+		// invalid message ... break connection
+		if(lm==null || lm.type!=LamportMessageType.INIT_REQUEST){
+			sock.close();
+			return;
+		}
+
+		// get serverID
+		int iServer = lm.serverID;
+
+		if(iServer < 0 || iServer == serverID || peers.containsKey(iServer)){
+			log.log(Level.WARNING, "Imposter attempt from server ID "+ iServer);
+			sock.close();
+			return;
+		}
+		if(lm.members != null)
+			members.putAll(parseMembers(lm.members));
+
+		// use binary only if both sides want it
+		LamportCodec codec = (lm.getCodec()==LamportCodec.BINARY && preferredCodec==LamportCodec.BINARY)
+				? LamportCodec.BINARY : LamportCodec.JSON;
+
+		// register the connection and respond with the operations the new server
+		// is missing and the live servers while every partition of every event is
+		// locked, so no broadcast can slip in ahead of the response. Requests still
+		// waiting for the CS are sent on, so the new server ACKs them like everyone
+		// else.
+		CatchUp catchUp;
+		server.lockAllEvents();
+		try {
+			catchUp = CatchUp.answer(server, lm.data);
+			PeerConnection peer = new PeerConnection(server, iServer, sock, in, out, codec, queueCapacity, queueBatch);
+			peer.peerStream = catchUp.getPeerStream();
+			if(!initConnectionCommon(peer))
+				return;
+			// the writer is not started yet, so neither heartbeats nor anything sent
+			// since the connection was registered go out ahead of the response
+			Set<Integer> live = getPeerIDs();
+			live.add(serverID);
+			LamportMessage respond = LamportMessage.INIT_RESPOND(serverID, getNumServers(), clock, catchUp.response(server), codec, describeMembers(live));
+			log.log(Level.FINER, "Lamport connection to server " + iServer + " uses " + codec);
+			sendMessage(out, LamportCodec.JSON, respond);
+			peer.startWriter();
+			server.resendRequests(iServer);
+		} finally {
+			server.unlockAllEvents();
+		}
+
+		if(catchUp.needsSnapshot()){
+			log.log(Level.INFO, "Catching up server " + iServer + " with a snapshot");
+			sendSnapshot(iServer, catchUp);
+		} else
+			log.log(Level.INFO, "Catching up server " + iServer + " with " + catchUp.size() + " operations");
+		server.peerConnected(iServer);
+	}
+
+
+	/**
+	 * Stream the events a rejoining server is behind on as INIT_DATA chunks, then
+	 * INIT_DONE. The chunks are sent without holding any lock, interleaved with
+	 * CS messages: both only ever move a seat to a later version.
+	 */
+	private void sendSnapshot(final int iServer, final CatchUp catchUp){
+		server.getExecutionMode().startThread("LamportCatchUp-" + iServer, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(EventInventory inventory : catchUp.snapshotEvents(server)){
+						List<SeatChange> seats = inventory.snapshot();
+						for(int from = 0; from < seats.size(); from += SNAPSHOT_CHUNK_SEATS){
+							List<SeatChange> chunk = seats.subList(from, Math.min(seats.size(), from + SNAPSHOT_CHUNK_SEATS));
+							sendMessage(iServer, LamportMessage.INIT_DATA(serverID, inventory.getID(), clock, SeatChange.toJson(chunk)));
+						}
+					}
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Failed to send snapshot to server " + iServer, e);
+				}
+				sendMessage(iServer, LamportMessage.INIT_DONE(serverID, clock));
+			}
+		});
+	}
+
+
+	/**
+	 * Initialize a new outgoing connection, offering our preferred codec.
+	 *
+	 * @return the IDs of the servers the other server reports live, or null if no
+	 *         connection was made
+	 */
+	private Set<Integer> initOutgoingConnection(Socket sock, int iServer) throws IOException{
+		log.log(Level.FINER, "Initializing connection with server "+iServer);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER_BYTES));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+
+		// write out init message
+		Set<Integer> self = new TreeSet<>();
+		self.add(serverID);
+		LamportMessage lminit = LamportMessage.INIT_REQUEST(serverID ,clock, CatchUp.request(server), preferredCodec, describeMembers(self));
+		log.log(Level.FINEST, "Sending message " + lminit + " to server " + iServer);
+		sendMessage(out, LamportCodec.JSON, lminit);
+
+		// read back data
+		LamportMessage lmresp = receiveMessage(in, LamportCodec.JSON);
+		if(lmresp==null || lmresp.type!=LamportMessageType.INIT_RESPOND){
+			sock.close();
+			return null;
+		}
+		CatchUp catchUp = CatchUp.received(server, lmresp.data);
+		PeerConnection peer = new PeerConnection(server, iServer, sock, in, out, lmresp.getCodec(), queueCapacity, queueBatch);
+		peer.peerStream = catchUp.getPeerStream();
+
+		// learn the live servers. Peers that predate membership only send their
+		// number, and number them from 0
+		Set<Integer> live = new TreeSet<>();
+		if(lmresp.members != null){
+			Map<Integer, InetSocketAddress> reported = parseMembers(lmresp.members);
+			members.putAll(reported);
+			live.addAll(reported.keySet());
+		} else
+			for(int i = 0; i < lmresp.nServers; i++)
+				live.add(i);
+		live.add(iServer);
+		log.log(Level.FINER, "Lamport connection made to server " + iServer + " using " + lmresp.getCodec());
+
+		// a snapshot follows on the Lamport channel: wait for all of it before
+		// going on, so this server does not serve stale seats
+		CountDownLatch done = null;
+		if(catchUp.needsSnapshot()){
+			log.log(Level.INFO, "Catching up from server " + iServer + " with a snapshot");
+			peer.pendingCatchUp = catchUp;
+			done = peer.catchUpDone = new CountDownLatch(1);
+		} else
+			log.log(Level.INFO, "Caught up from server " + iServer + " with " + catchUp.size() + " operations");
+
+		if(!initConnectionCommon(peer)){
+			releaseCatchUp(peer);
+			return null;
+		}
+		// a server that dropped the connection while we were live forgot our
+		// requests still waiting for the CS, so send them again, as it does its own
+		server.lockAllEvents();
+		try {
+			peer.startWriter();
+			server.resendRequests(iServer);
+		} finally {
+			server.unlockAllEvents();
+		}
+		if(done != null){
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		server.peerConnected(iServer);
+		return live;
+	}
+
+
+	/**
+	 * Common steps for connection initialization. If the two servers connected to
+	 * each other at the same time, the second connection is closed again.
+	 *
+	 * @return false if there already was a connection to the server
+	 */
+	private boolean initConnectionCommon(final PeerConnection peer) throws IOException{
+		// messages of different partitions often go out back to back: do not let
+		// Nagle's algorithm hold one back until the previous one is ACKed
+		peer.socket.setTcpNoDelay(true);
+		
+		// register the connection
+		peer.lastHeard = System.nanoTime();
+		if(peers.putIfAbsent(peer.id, peer) != null){
+			log.log(Level.FINE, "Already connected to server " + peer.id + ": closing second connection");
+			peer.socket.close();
+			return false;
+		}
+		log.fine("Live servers: " + getNumServers());
+
+		// spin off new thread
+		log.log(Level.FINEST, "Starting Lamport thread "+peer.id);
+		server.getExecutionMode().startThread("LamportListener-" + peer.id, new Runnable() {
+
+			@Override
+			public void run() {
+				listenerLoop(peer);
+			}
+		});
+		return true;
+	}
+
+
+	/**
+	 * Listen infinite listen loop for Lamport messages on the Lamport channel
+	 */
+	private void listenerLoop(PeerConnection peer){
+		LamportMessage lm = null;
+		int otherServerID = peer.id;
+		LamportCodec.Reader reader = new LamportCodec.Reader();
+		log.finer("Entering listener loop for server " + otherServerID);
+		try{
+			while( (lm = receiveMessage(peer.in, peer.codec, reader)) != null){
+				peer.lastHeard = System.nanoTime();
+				server.getMetrics().messageReceived(otherServerID, lm.type);
+				if(lm.type == LamportMessageType.HEARTBEAT)
+					continue;
+				if(log.isLoggable(Level.FINEST))
+					log.log(Level.FINEST, "Received string " + lm.toString() + " from server " + otherServerID);
+				if(lm.type == LamportMessageType.INIT_DATA){
+					try {
+						server.getInventory(lm.event).applyChanges(SeatChange.fromJson(lm.data));
+					} catch (IOException e) {
+						log.log(Level.SEVERE, "Failed to read snapshot chunk from server " + otherServerID, e);
+					}
+					continue;
+				}
+				if(lm.type == LamportMessageType.INIT_DONE){
+					finishCatchUp(peer);
+					continue;
+				}
+				if(lm.type == LamportMessageType.LEAVE){
+					log.log(Level.INFO, "Server " + otherServerID + " is leaving the cluster");
+					members.remove(otherServerID);
+					continue;
+				}
+				if(LeaderReplication.handles(lm.type)){
+					if(server.getReplication() != null)
+						server.getReplication().processMessage(lm);
+					else
+						log.log(Level.WARNING, "Dropping " + lm.type + " message: check that every server sets the same replication");
+					continue;
+				}
+
+				// hand the message to the mutex of its event and partition
+				List<DistributedMutex> mutexes = server.getInventory(lm.event).getMutexes();
+				if(lm.partition >= 0 && lm.partition < mutexes.size())
+					mutexes.get(lm.partition).processMessage(lm);
+				else
+					log.log(Level.WARNING, "Dropping message for unknown partition " + lm.partition
+							+ ": check that every server sets the same number of partitions");
+			}
+		} catch (Exception e){}
+		finally{
+			log.log(closed ? Level.FINE : Level.WARNING, "Uh oh! Lost connection with server " + otherServerID + ": clearing comms");
+			peer.close();
+			peers.remove(otherServerID, peer);
+			releaseCatchUp(peer);
+			log.fine("Live servers: " + getNumServers());
+			// its requests will never be released, and fewer ACKs are needed now, so
+			// waiters may be able to enter
+			server.peerLost(otherServerID);
+			if(!closed && otherServerID < serverID && members.containsKey(otherServerID))
+				startReconnectThread(otherServerID);
+		}
+		log.finer("Leaving listener loop for server " + otherServerID);
+	}
+
+
+	/**
+	 * All snapshot chunks from a server have been applied
+	 */
+	private void finishCatchUp(PeerConnection peer){
+		CatchUp catchUp = peer.pendingCatchUp;
+		if(catchUp != null){
+			catchUp.finish(server);
+			log.log(Level.INFO, "Caught up from server " + peer.id + " with a snapshot");
+		}
+		releaseCatchUp(peer);
+	}
+
+
+	/**
+	 * Let the connecting thread go on, whether or not the snapshot made it
+	 */
+	private void releaseCatchUp(PeerConnection peer){
+		peer.pendingCatchUp = null;
+		CountDownLatch done = peer.catchUpDone;
+		peer.catchUpDone = null;
+		if(done != null)
+			done.countDown();
+	}
+
+
+	/**
+	 * Write a handshake message straight to a stream whose writer is not started
+	 */
+	private void sendMessage(DataOutputStream out, LamportCodec codec, LamportMessage message) {
+		try {
+			codec.write(message, out);
+			out.flush();
+		} catch (IOException e) {
+			// the listener loop notices the dead connection and clears comms
+			log.log(Level.WARNING, "Failed to send message: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Address of the Lamport channel of a member, one port above its client port
+	 */
+	private static InetSocketAddress lamportAddress(InetSocketAddress address){
+		return new InetSocketAddress(address.getAddress(), address.getPort() + 1);
+	}
+
+
+	/**
+	 * The addresses of the given members that are known, as "id=host:port,..."
+	 */
+	private String describeMembers(Collection<Integer> ids){
+		StringBuilder sb = new StringBuilder();
+		for (int id : ids) {
+			InetSocketAddress address = members.get(id);
+			if (address == null)
+				continue;
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(id).append('=').append(address.getAddress().getHostAddress()).append(':').append(address.getPort());
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Read a list written by describeMembers, skipping entries that do not parse
+	 */
+	private Map<Integer, InetSocketAddress> parseMembers(String list){
+		Map<Integer, InetSocketAddress> parsed = new TreeMap<>();
+		for (String entry : list.split(",")) {
+			int eq = entry.indexOf('=');
+			int colon = entry.lastIndexOf(':');
+			if (eq < 0 || colon < eq)
+				continue;
+			try {
+				int id = Integer.parseInt(entry.substring(0, eq).trim());
+				InetAddress host = InetAddress.getByName(entry.substring(eq + 1, colon).trim());
+				parsed.put(id, new InetSocketAddress(host, Integer.parseInt(entry.substring(colon + 1).trim())));
+			} catch (IOException | NumberFormatException e) {
+				log.log(Level.WARNING, "Ignoring member " + entry + ": " + e.getMessage());
+			}
+		}
+		parsed.remove(serverID);
+		return parsed;
+	}
+
+
+	/**
+	 * Receive a LamportMessage over the given stream, or null if the connection is gone.
+	 * The receiving mutex advances its own clock.
+	 */
+	private LamportMessage receiveMessage(DataInputStream in, LamportCodec codec){
+		return receiveMessage(in, codec, null);
+	}
+
+
+	/**
+	 * Receive a LamportMessage, which may be the reader's own, reused by the next call
+	 */
+	private LamportMessage receiveMessage(DataInputStream in, LamportCodec codec, LamportCodec.Reader reader){
+		LamportMessage lm = null;
+		try {
+			lm = codec.read(in, reader);
+		} catch (IOException e) {
+			if(!closed)
+				e.printStackTrace();
+		}
+		return lm;
+	}
+
+}
@@ -0,0 +1,6 @@
+
+public enum ReadConsistency {
+	MUTEX,		// reads enter the CS like writes
+	LOCAL,		// reads answer from the local replica with no coordination
+	ORDERED		// reads wait until the local replica has applied every CS request ordered before them
+}
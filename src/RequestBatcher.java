@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class RequestBatcher {
+//****************************************************************
+//	Fields
+//****************************************************************
+	private Server server;
+	private Logger log;
+	private EventInventory inventory;
+	private ConcurrentHashMap<BitSet, Lane> lanes;
+	private int batchSize;
+	private long lingerNanos;
+	private ExecutorService workers;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 *
+	 * @param inventory		the event whose requests are batched
+	 * @param workers		runs the batches, shared by the batchers of all events
+	 * @param batchSize		the most client requests applied in one CS entry
+	 * @param lingerMillis	how long to wait for a batch to fill up once the first
+	 * 						request has arrived. 0 takes whatever is already pending.
+	 */
+	public RequestBatcher(Server server, EventInventory inventory, ExecutorService workers, int batchSize, int lingerMillis) {
+		this.server = server;
+		this.log = server.getLogger("batch");
+		this.inventory = inventory;
+		this.workers = workers;
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		lanes = new ConcurrentHashMap<>();
+	}
+
+
+	/**
+	 * Queue a client request for the next batch on the partitions it needs. The
+	 * returned future completes with the response once the batch has been applied.
+	 */
+	public CompletableFuture<Map<String, String>> submit(Map<String, String> request) {
+		PendingRequest pr = new PendingRequest(request);
+		enqueue(pr);
+		return pr.response;
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	/**
+	 * Add a request to the lane of the partitions it needs, and make sure the lane
+	 * gets a worker
+	 */
+	private void enqueue(PendingRequest pr) {
+		BitSet partitions = inventory.partitionsFor(pr.request);
+		Lane lane = lanes.get(partitions);
+		if(lane == null){
+			Lane newLane = new Lane(partitions);
+			lane = lanes.putIfAbsent(partitions, newLane);
+			if(lane == null)
+				lane = newLane;
+		}
+		lane.pending.add(pr);
+		schedule(lane);
+	}
+
+
+	/**
+	 * Hand a lane to a worker, unless one is already on it. A lane runs one batch
+	 * at a time; lanes on disjoint partitions run in parallel.
+	 */
+	private void schedule(final Lane lane) {
+		if(!lane.scheduled.compareAndSet(false, true))
+			return;
+
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<PendingRequest> batch = new ArrayList<>(batchSize);
+				try {
+					collectBatch(lane, batch);
+					// a full queue to another server holds up new batches here, with no
+					// lock held, rather than the messages sent under the mutex locks
+					server.getNetwork().awaitRoom();
+					applyBatch(lane.partitions, batch);
+				} catch (InterruptedException e) {
+					log.log(Level.WARNING, "Request batcher interrupted");
+				} finally {
+					lane.scheduled.set(false);
+					if(!lane.pending.isEmpty())
+						schedule(lane);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Take up to batchSize pending requests of a lane, lingering for more if asked to
+	 */
+	private void collectBatch(Lane lane, List<PendingRequest> batch) throws InterruptedException {
+		lane.pending.drainTo(batch, batchSize);
+
+		long deadline = System.nanoTime() + lingerNanos;
+		while(batch.size() < batchSize){
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0L)
+				break;
+			PendingRequest pr = lane.pending.poll(remaining, TimeUnit.NANOSECONDS);
+			if(pr == null)
+				break;
+			batch.add(pr);
+			lane.pending.drainTo(batch, batchSize - batch.size());
+		}
+	}
+
+
+	/**
+	 * Apply all requests of a batch, in order, under one REQUEST/ACK/RELEASE round
+	 * on each of the given partitions. A request that turns out to need a partition
+	 * not held is queued again.
+	 */
+	private void applyBatch(BitSet partitions, List<PendingRequest> batch) {
+		if(batch.isEmpty())
+			return;
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Applying batch of " + batch.size() + " requests on event " + inventory.getID() + ", partitions " + partitions);
+
+		// this blocks until we have permission on every partition
+		long requested = System.nanoTime();
+		int csRequest = inventory.requestCriticalSections(partitions);
+		long entered = System.nanoTime();
+		server.getMetrics().csEntered(requested);
+
+		List<SeatChange> changes = new ArrayList<>();
+		List<PendingRequest> deferred = new ArrayList<>();
+		List<PendingRequest> done = new ArrayList<>(batch.size());
+		List<Map<String, String>> responses = new ArrayList<>(batch.size());
+		for(PendingRequest pr : batch){
+			try {
+				Map<String, String> response = inventory.applyRequest(pr.request, partitions, changes);
+				if(response == null)
+					deferred.add(pr);
+				else {
+					done.add(pr);
+					responses.add(response);
+				}
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Failed to apply request " + pr.request, e);
+				pr.response.completeExceptionally(e);
+			}
+		}
+
+		// release the critical sections, sending only the seats this batch changed.
+		// Clients only hear back once the changes are on disk, but the fsync happens
+		// after the release so other servers need not wait for it.
+		long logSeq = inventory.releaseCriticalSections(partitions, csRequest, changes);
+		server.getMetrics().csReleased(entered);
+		server.awaitDurable(logSeq);
+		for(int i = 0; i < done.size(); i++)
+			done.get(i).response.complete(responses.get(i));
+
+		for(PendingRequest pr : deferred){
+			if(log.isLoggable(Level.FINE))
+				log.log(Level.FINE, "Deferring request " + pr.request + ": needs other partitions than " + partitions);
+			enqueue(pr);
+		}
+	}
+
+
+//****************************************************************
+//	Private Classes
+//****************************************************************
+
+	/**
+	 * A client request waiting for its batch
+	 */
+	private static class PendingRequest {
+		final Map<String, String> request;
+		final CompletableFuture<Map<String, String>> response;
+
+		PendingRequest(Map<String, String> request) {
+			this.request = request;
+			this.response = new CompletableFuture<>();
+		}
+	}
+
+
+	/**
+	 * Requests that need the same set of partitions, batched together
+	 */
+	private static class Lane {
+		final BitSet partitions;
+		final LinkedBlockingQueue<PendingRequest> pending = new LinkedBlockingQueue<>();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Lane(BitSet partitions) {
+			this.partitions = partitions;
+		}
+	}
+
+}
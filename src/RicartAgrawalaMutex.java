@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ricart-Agrawala mutual exclusion for one seat partition of one event. A request
+ * is sent to every other server, which replies (CS_ACK) at once unless it is in
+ * the CS or has an earlier request of its own, in which case the reply waits until
+ * it leaves the CS. There is no RELEASE: only a CS that changed seats sends them
+ * (CS_RELEASE), just before the deferred replies, so the next holder has them
+ * before it enters.
+ */
+public class RicartAgrawalaMutex implements DistributedMutex {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private PeerNetwork network;
+	private EventInventory inventory;
+	private int partition;
+	private LogicalClock clock;
+	private int serverID;
+	private Server server;
+	private Logger log;
+	private PriorityQueue<LamportMessage> ownRequests;
+	private LamportMessage inCS;
+	private Map<Integer, Set<Integer>> replies;
+	private List<LamportMessage> deferred;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition csCondition = lock.newCondition();
+
+
+//****************************************************************
+//	Ricart-Agrawala Methods
+//****************************************************************
+
+	/**
+	 * Request the CS, blocking until every other server has replied and no earlier
+	 * request of ours is waiting or in the CS
+	 *
+	 * @return the ID of the granted request, to be passed to releaseCS
+	 */
+	@Override
+	public int requestCriticalSection() {
+		LamportMessage lm;
+		lock.lock();
+		try {
+			lm = sendRequest(clock.value(), network.nextRequestID());
+		} finally {
+			lock.unlock();
+		}
+		awaitCS(lm);
+		return lm.requestID;
+	}
+
+
+	@Override
+	public long releaseCS(int requestID, List<SeatChange> changes) {
+		BitSet partitions = new BitSet();
+		partitions.set(partition);
+		return inventory.releaseCriticalSections(partitions, requestID, changes);
+	}
+
+
+	/**
+	 * Send a request to the N-1 other servers -- must hold lock
+	 */
+	@Override
+	public LamportMessage sendRequest(int timestamp, int requestID) {
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Requesting CS on partition " + partition);
+		LamportMessage lm = LamportMessage.REQUEST(serverID, inventory.getID(), partition, new LogicalClock(timestamp), requestID);
+		replies.put(lm.requestID, new HashSet<Integer>());
+		ownRequests.add(lm);
+		broadcastMessage(lm);
+
+		// later messages of this partition must be stamped after the request
+		clock.advance(lm.clock);
+		return lm;
+	}
+
+
+	/**
+	 * Wait until every other live server has replied, and the request is the
+	 * earliest of ours
+	 */
+	@Override
+	public void awaitCS(LamportMessage lm) {
+		lock.lock();
+		try {
+			while( !canEnterCS(lm) )
+				csCondition.awaitUninterruptibly();
+			inCS = lm;
+		} finally {
+			lock.unlock();
+		}
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Entering CS on partition " + partition + " with request " + lm.requestID);
+	}
+
+
+	/**
+	 * Send the seat changes, if any, then the replies held back while in the CS
+	 */
+	@Override
+	public void release(int requestID, String data) {
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Releasing CS for request " + requestID);
+		lock.lock();
+		try {
+			if(!LamportMessage.NO_DATA.equals(data))
+				broadcastMessage(LamportMessage.RELEASE(serverID, inventory.getID(), partition, clock, requestID, data));
+
+			Iterator<LamportMessage> it = ownRequests.iterator();
+			while(it.hasNext())
+				if(it.next().requestID == requestID)
+					it.remove();
+			replies.remove(requestID);
+			inCS = null;
+
+			sendDeferredReplies();
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Process a received REQUEST, reply (CS_ACK) or seat update (CS_RELEASE)
+	 */
+	@Override
+	public void processMessage(LamportMessage lm) {
+		if(log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Processing message " + lm.toString());
+		clock.advance(lm.clock);
+
+		lock.lock();
+		try {
+			if(lm.type == LamportMessageType.CS_REQUEST){
+				if(mustDefer(lm))
+					deferred.add(lm.copy());
+				else
+					sendMessage(lm.serverID, LamportMessage.ACK(serverID, inventory.getID(), partition, clock, lm.requestID));
+
+			} else if(lm.type == LamportMessageType.CS_ACK){
+				// replies to requests that already entered and left are dropped
+				Set<Integer> repliers = replies.get(lm.requestID);
+				if(repliers != null)
+					repliers.add(lm.serverID);
+				csCondition.signalAll();
+
+			} else if(lm.type == LamportMessageType.CS_RELEASE){
+				inventory.applyOperation(network.getPeerStream(lm.serverID), lm.requestID, lm.data);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * A request must wait for our reply if we are in the CS, or our earliest
+	 * request comes before it -- must hold lock
+	 */
+	private boolean mustDefer(LamportMessage request) {
+		LamportMessage earliest = ownRequests.peek();
+		return earliest != null && (earliest == inCS || earliest.compareTo(request) < 0);
+	}
+
+
+	/**
+	 * Reply to the deferred requests that no longer come after one of ours -- must hold lock
+	 */
+	private void sendDeferredReplies() {
+		Iterator<LamportMessage> it = deferred.iterator();
+		while(it.hasNext()){
+			LamportMessage request = it.next();
+			if(!mustDefer(request)){
+				sendMessage(request.serverID, LamportMessage.ACK(serverID, inventory.getID(), partition, clock, request.requestID));
+				it.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Ricart-Agrawala conditions for entering the CS -- must hold lock
+	 */
+	private boolean canEnterCS(LamportMessage lm) {
+		return inCS == null && ownRequests.peek() == lm
+				&& replies.get(lm.requestID).size() >= (network.getNumServers()-1);
+	}
+
+
+	/**
+	 * Send a message to another server, specified by their serverID -- must hold lock
+	 */
+	private void sendMessage(int otherServerID, LamportMessage message) {
+		network.sendMessage(otherServerID, message);
+		clock.increment();
+	}
+
+
+	/**
+	 * Broadcast message to all other listening servers -- must hold lock
+	 */
+	private void broadcastMessage(LamportMessage msg) {
+		network.broadcastMessage(msg);
+		clock.increment();
+	}
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 */
+	public RicartAgrawalaMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+		this.network = network;
+		this.inventory = inventory;
+		this.server = server;
+		this.log = server.getLogger("mutex");
+		this.serverID = server.getID();
+		this.partition = partition;
+		ownRequests = new PriorityQueue<>();
+		replies = new HashMap<>();
+		deferred = new ArrayList<>();
+		clock = new LogicalClock(0);
+	}
+
+
+	@Override
+	public int getPartition() {
+		return partition;
+	}
+
+
+	/**
+	 * Our own requests, and the requests of other servers we have deferred
+	 */
+	@Override
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return ownRequests.size() + deferred.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public int currentTime() {
+		return clock.value();
+	}
+
+
+//****************************************************************
+//	Network Methods -- called by the PeerNetwork
+//****************************************************************
+
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+
+
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+
+
+	/**
+	 * Send our requests that have not left the CS to a server that just connected,
+	 * so it replies to them too -- must hold lock
+	 */
+	@Override
+	public void resendRequests(int otherServerID) {
+		for(LamportMessage lm : ownRequests)
+			network.sendMessage(otherServerID, lm);
+	}
+
+
+	/**
+	 * Drop the deferred requests and the replies of a server that is gone, and
+	 * wake up waiters, since fewer replies are needed now
+	 */
+	@Override
+	public void peerLost(int otherServerID) {
+		lock.lock();
+		try {
+			Iterator<LamportMessage> it = deferred.iterator();
+			while(it.hasNext())
+				if(it.next().serverID == otherServerID)
+					it.remove();
+			for(Set<Integer> repliers : replies.values())
+				repliers.remove(otherServerID);
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
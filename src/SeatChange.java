@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * One seat assignment made in a CS, as replicated in CS_RELEASE messages. The
+ * version counts changes to this seat. Changes to one seat are ordered by the
+ * mutex of the seat's partition, so a replica can safely skip a change whose
+ * version it has already passed. This makes it harmless for a change to arrive
+ * more than once, or late, through RELEASEs of different partitions.
+ */
+public class SeatChange {
+//****************************************************************
+//	Fields
+//****************************************************************
+	final int seat;
+	final int version;
+	final String name;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	public SeatChange(int seat, int version, String name) {
+		this.seat = seat;
+		this.version = version;
+		this.name = name;
+	}
+
+
+	@Override
+	public String toString() {
+		return seat + "=" + name + "@" + version;
+	}
+
+
+	/**
+	 * Serialize changes as a JSON array of [seat, version, name] arrays
+	 */
+	public static String toJson(List<SeatChange> changes) throws IOException {
+		StringWriter out = new StringWriter(32 * changes.size() + 2);
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			write(gen, changes);
+		}
+		return out.toString();
+	}
+
+
+	/**
+	 * Parse changes written by toJson
+	 */
+	public static List<SeatChange> fromJson(String json) throws IOException {
+		try (JsonParser parser = JsonCodec.factory().createParser(json)) {
+			parser.nextToken();
+			return read(parser);
+		}
+	}
+
+
+	/**
+	 * Write changes as a JSON array, as part of a larger document
+	 */
+	public static void write(JsonGenerator gen, List<SeatChange> changes) throws IOException {
+		gen.writeStartArray();
+		for (SeatChange change : changes) {
+			gen.writeStartArray();
+			gen.writeNumber(change.seat);
+			gen.writeNumber(change.version);
+			gen.writeString(change.name);
+			gen.writeEndArray();
+		}
+		gen.writeEndArray();
+	}
+
+
+	/**
+	 * Read a JSON array of changes, as part of a larger document. The parser must
+	 * be on the START_ARRAY token, and is left on the matching END_ARRAY.
+	 */
+	public static List<SeatChange> read(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY)
+			throw new IOException("Expected an array of seat changes");
+		List<SeatChange> changes = new ArrayList<>();
+		while (parser.nextToken() == JsonToken.START_ARRAY) {
+			parser.nextToken();
+			int seat = parser.getIntValue();
+			parser.nextToken();
+			int version = parser.getIntValue();
+			parser.nextToken();
+			String name = parser.getText();
+			parser.nextToken(); // END_ARRAY
+			changes.add(new SeatChange(seat, version, name));
+		}
+		return changes;
+	}
+
+}
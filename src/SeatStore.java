@@ -0,0 +1,104 @@
+import java.util.List;
+
+/**
+ * The seats of one event: who holds each seat, the seat held by each name, and
+ * the version of every seat. Seats are 0-based; a free seat has the name "".
+ * Implementations are safe for concurrent use.
+ */
+public interface SeatStore {
+
+	/**
+	 * Number of seats
+	 */
+	int size();
+
+
+	/**
+	 * Name the given seat is assigned to, or "" if it is free
+	 */
+	String get(int seat);
+
+
+	/**
+	 * True if the given seat is free
+	 */
+	boolean isFree(int seat);
+
+
+	/**
+	 * Seat assigned to the given name, or -1 if there is none
+	 */
+	int seatOf(String name);
+
+
+	/**
+	 * Lowest free seat, or -1 if sold out
+	 */
+	int nextFreeSeat();
+
+
+	/**
+	 * Lowest free seat in [from, to), or -1 if there is none
+	 */
+	int nextFreeSeat(int from, int to);
+
+
+	/**
+	 * Assign a seat to a name. Assigning "" frees the seat.
+	 *
+	 * @return the change, with the seat's new version, for other servers to apply
+	 * @throws IndexOutOfBoundsException if there is no such seat, and nothing changes
+	 */
+	SeatChange assign(int seat, String name);
+
+
+	/**
+	 * Apply changes made by another server together. A change is skipped if this
+	 * store already has the seat at that version or a later one.
+	 *
+	 * @throws IndexOutOfBoundsException if a change is to a seat there is not, and
+	 * nothing changes
+	 */
+	void applyAll(List<SeatChange> changes);
+
+
+	/**
+	 * Every seat that was ever changed, with its name and version, taken together.
+	 * Applying the snapshot to another store brings it up to date.
+	 */
+	List<SeatChange> snapshot();
+
+
+	/**
+	 * A hash of the version of every seat. Two stores with the same digest hold the
+	 * same seats, so a server that is already up to date need not be sent them.
+	 */
+	long digest();
+
+
+	/**
+	 * Copy of all seats as a list, "" for free seats
+	 */
+	List<String> toList();
+
+
+	/**
+	 * Release any resources held, after which the store must not be used
+	 */
+	void close();
+
+
+	/**
+	 * What a seat at a version adds to the digest. Seats never changed count for
+	 * nothing, so the digest of an empty store is 0.
+	 */
+	static long versionHash(int seat, int version) {
+		if (version == 0)
+			return 0L;
+		long h = ((long) seat << 32) | (version & 0xffffffffL);
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+}
@@ -0,0 +1,216 @@
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mutual exclusion for one seat partition of one event with replication=leader.
+ * Only the leader applies writes (see LeaderReplication), so the CS is a local
+ * queue: requests enter in the order they were made, with no messages to other
+ * servers. A CS that changed seats sends them to every follower (CS_RELEASE) when
+ * it is released, in the order the leader applied them.
+ */
+public class SequencerMutex implements DistributedMutex {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private PeerNetwork network;
+	private EventInventory inventory;
+	private int partition;
+	private LogicalClock clock;
+	private int serverID;
+	private Server server;
+	private Logger log;
+	private ArrayDeque<LamportMessage> queue;
+	private LamportMessage inCS;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition csCondition = lock.newCondition();
+
+
+//****************************************************************
+//	Sequencer Methods
+//****************************************************************
+
+	/**
+	 * Request the CS, blocking until every earlier request has left it
+	 *
+	 * @return the ID of the granted request, to be passed to releaseCS
+	 */
+	@Override
+	public int requestCriticalSection() {
+		LamportMessage lm;
+		lock.lock();
+		try {
+			lm = sendRequest(clock.value(), network.nextRequestID());
+		} finally {
+			lock.unlock();
+		}
+		awaitCS(lm);
+		return lm.requestID;
+	}
+
+
+	@Override
+	public long releaseCS(int requestID, List<SeatChange> changes) {
+		BitSet partitions = new BitSet();
+		partitions.set(partition);
+		return inventory.releaseCriticalSections(partitions, requestID, changes);
+	}
+
+
+	/**
+	 * Queue a request. Nothing is sent: only the leader enters the CS -- must hold lock
+	 */
+	@Override
+	public LamportMessage sendRequest(int timestamp, int requestID) {
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Requesting CS on partition " + partition);
+		LamportMessage lm = LamportMessage.REQUEST(serverID, inventory.getID(), partition, new LogicalClock(timestamp), requestID);
+		queue.addLast(lm);
+		clock.increment();
+		return lm;
+	}
+
+
+	/**
+	 * Wait until the request is the first in the queue
+	 */
+	@Override
+	public void awaitCS(LamportMessage lm) {
+		lock.lock();
+		try {
+			while( inCS != null || queue.peekFirst() != lm )
+				csCondition.awaitUninterruptibly();
+			inCS = lm;
+		} finally {
+			lock.unlock();
+		}
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Entering CS on partition " + partition + " with request " + lm.requestID);
+	}
+
+
+	/**
+	 * Send the seat changes, if any, to the followers, and let the next request in
+	 */
+	@Override
+	public void release(int requestID, String data) {
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Releasing CS for request " + requestID);
+		lock.lock();
+		try {
+			if(!LamportMessage.NO_DATA.equals(data)){
+				network.broadcastMessage(LamportMessage.RELEASE(serverID, inventory.getID(), partition, clock, requestID, data));
+				clock.increment();
+			}
+
+			Iterator<LamportMessage> it = queue.iterator();
+			while(it.hasNext())
+				if(it.next().requestID == requestID)
+					it.remove();
+			inCS = null;
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Apply the seat changes of the leader (CS_RELEASE)
+	 */
+	@Override
+	public void processMessage(LamportMessage lm) {
+		if (log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Processing message " + lm.toString());
+		clock.advance(lm.clock);
+
+		lock.lock();
+		try {
+			if(lm.type == LamportMessageType.CS_RELEASE)
+				inventory.applyOperation(network.getPeerStream(lm.serverID), lm.requestID, lm.data);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 */
+	public SequencerMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+		this.network = network;
+		this.inventory = inventory;
+		this.server = server;
+		this.log = server.getLogger("mutex");
+		this.serverID = server.getID();
+		this.partition = partition;
+		queue = new ArrayDeque<>();
+		clock = new LogicalClock(0);
+	}
+
+
+	@Override
+	public int getPartition() {
+		return partition;
+	}
+
+
+	@Override
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public int currentTime() {
+		return clock.value();
+	}
+
+
+//****************************************************************
+//	Network Methods -- called by the PeerNetwork
+//****************************************************************
+
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+
+
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+
+
+	/**
+	 * Nothing to send: requests never leave this server
+	 */
+	@Override
+	public void resendRequests(int otherServerID) {
+	}
+
+
+	/**
+	 * Nothing to forget: no other server takes part in the CS
+	 */
+	@Override
+	public void peerLost(int otherServerID) {
+	}
+
+}
@@ -1,4 +1,5 @@
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,18 +10,23 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class Server {
 
@@ -28,17 +34,37 @@ public class Server {
 //	Fields
 //****************************************************************
 	
-	protected final Logger log = Logger.getLogger(this.getClass().getCanonicalName());
+	protected final Logger log;
+	
+	private static final int MAX_EVENT_ID_LENGTH = 64;
+	private static final int DEFAULT_PIPELINE = 64;
 	
 	private int tcpPort;
 	private int serverID;
 	private int nServers;
 	private int nSeats;
-	private List<String> seatAssignments;
+	private ReadConsistency readConsistency;
+	private MutexAlgorithm mutexAlgorithm;
+	private ExecutionMode executionMode;
 	private List<InetAddress> servers;
 	private List<Integer> ports;
-	private LamportMutex mutex;
-	private Level logLevel = Level.ALL;
+	private int partitions;
+	private int maxEvents;
+	private PeerNetwork network;
+	private LeaderReplication replication;
+	private Map<String, EventInventory> events = new ConcurrentHashMap<>();
+	private final ReentrantLock eventsLock = new ReentrantLock();
+	private ExecutorService batchWorkers;
+	private OperationHistory history;
+	private OperationLog operationLog;
+	private ServerMetrics metrics;
+	private File storeDir;
+	private Properties options = new Properties();
+	private List<Thread> shutdownHooks = new ArrayList<>();
+	private Set<Socket> clientSockets = ConcurrentHashMap.newKeySet();
+	private volatile NioClientFrontEnd nioFrontEnd;
+	private volatile ServerSocket clientServerSocket;
+	private volatile boolean stopped;
 	
 	
 //****************************************************************
@@ -48,11 +74,10 @@ public class Server {
 	public Server(String fileName, boolean restart) {
 		super();
 		parseServerFile(fileName);
-		seatAssignments = new ArrayList<>(nSeats);
-		for (int i = 0; i < nSeats; i++)
-			seatAssignments.add("");
 
-		log.getParent().removeHandler(log.getParent().getHandlers()[0]);
+		// one logger per server, so servers sharing a JVM keep their own handlers
+		log = Logger.getLogger(this.getClass().getCanonicalName() + "." + serverID);
+		log.setUseParentHandlers(false);
 		
 		try {
 			// check if logs dir exists
@@ -60,14 +85,10 @@ public class Server {
 			if( !(logDir.exists()) )
 				logDir.mkdir();
 				
-			FileHandler fh = new FileHandler("logs/server_log_" + serverID + ".log");
-			fh.setFormatter(new SimpleFormatter());
-			fh.setLevel(logLevel);
-			log.addHandler(fh);
-			
-			ConsoleHandler ch = new ConsoleHandler();
-			ch.setLevel(logLevel);
-			log.addHandler(ch);
+			Level logLevel = Level.parse(getOption("log.level", "INFO").toUpperCase());
+			log.addHandler(new AsyncLogHandler(new File(logDir, "server_log_" + serverID + ".log"),
+					Level.parse(getOption("log.console", logLevel.getName()).toUpperCase()),
+					getIntOption("log.buffer", 8192), "LogWriter-" + serverID));
 			log.setLevel(logLevel);
 			
 			log.info("Server initializing...");
@@ -77,10 +98,70 @@ public class Server {
 			log.info("my tcp port = " + tcpPort);
 			for (int i = 0; i < nServers; i++)
 				log.info("Server " + i + ": " + servers.get(i) + ":" + ports.get(i));
+			if (getOption("replication", "mutex").equalsIgnoreCase("leader")) {
+				log.info("Replicating through an elected leader");
+				mutexAlgorithm = MutexAlgorithm.SEQUENCER;
+			} else {
+				mutexAlgorithm = MutexAlgorithm.valueOf(getOption("mutex", "lamport").toUpperCase());
+				if (mutexAlgorithm == MutexAlgorithm.SEQUENCER) {
+					log.warning("Mutex " + mutexAlgorithm + " needs replication=leader: using " + MutexAlgorithm.LAMPORT);
+					mutexAlgorithm = MutexAlgorithm.LAMPORT;
+				}
+			}
+			readConsistency = ReadConsistency.valueOf(getOption("read.consistency", "ordered").toUpperCase());
+			executionMode = ExecutionMode.valueOf(getOption("execution", "platform").toUpperCase());
+			if (!executionMode.isSupported()) {
+				log.warning("Execution mode " + executionMode + " needs Java 21+: using platform threads");
+				executionMode = ExecutionMode.PLATFORM;
+			}
+			partitions = Math.max(1, Math.min(getIntOption("partitions", 1), nSeats));
+			log.info("partitions = " + partitions);
+			maxEvents = getIntOption("events.max", 1024);
+			log.info("options = " + options);
 			log.info("Server init complete");
 			log.info("--------------------------------");
-			mutex = new LamportMutex(servers, ports, this, restart);
-			mutex.init();
+			int batchThreads = getIntOption("batch.threads", partitions * Runtime.getRuntime().availableProcessors());
+			log.info("Starting request batchers: batchSize = " + getIntOption("batch.size", 32)
+					+ ", linger = " + getIntOption("batch.linger", 0) + " ms, threads = " + batchThreads);
+			batchWorkers = executionMode.newExecutor(batchThreads);
+			metrics = new ServerMetrics(this);
+			network = new PeerNetwork(servers, ports, this, restart);
+			if (mutexAlgorithm == MutexAlgorithm.SEQUENCER)
+				replication = new LeaderReplication(this, network);
+			history = new OperationHistory(serverID + ":" + System.currentTimeMillis(), getIntOption("catchup.operations", 10000));
+			if (getOption("store", "heap").equalsIgnoreCase("mapped")) {
+				storeDir = new File(getOption("store.dir", getOption("data.dir", "data")), "server_" + (serverID + 1));
+				log.info("Opening mapped seat stores in " + storeDir);
+				for (String eventID : MappedSeatStore.listEvents(storeDir))
+					getInventory(eventID);
+				addShutdownHook(new Thread("SeatStoreClose") {
+					@Override
+					public void run() {
+						closeInventories();
+					}
+				});
+			}
+			if (readConsistency == ReadConsistency.ORDERED
+					&& !(getInventory(EventInventory.DEFAULT_EVENT).getMutexes().get(0) instanceof OrderedReads)) {
+				log.warning("Mutex " + mutexAlgorithm + " cannot order reads: reads enter the CS");
+				readConsistency = ReadConsistency.MUTEX;
+			}
+			if (getOption("wal", "on").equalsIgnoreCase("on")) {
+				File dataDir = new File(getOption("data.dir", "data"), "server_" + (serverID + 1));
+				log.info("Recovering from write-ahead log in " + dataDir);
+				operationLog = new OperationLog(this, dataDir, getIntOption("snapshot.records", 100000));
+				operationLog.recover();
+			}
+			network.init();
+			if (replication != null)
+				replication.start();
+			metrics.start();
+			addShutdownHook(new Thread("LamportLeave") {
+				@Override
+				public void run() {
+					network.leave();
+				}
+			});
 		} catch (SecurityException | IOException e) {
 			e.printStackTrace();
 		}
@@ -91,27 +172,186 @@ public class Server {
 		return serverID;
 	}
 
+
+	/**
+	 * The mutual exclusion algorithm every partition of every event uses 
+	 */
+	public MutexAlgorithm getMutexAlgorithm(){
+		return mutexAlgorithm;
+	}
+
 	
 	/**
-	 * Run the server. Creates a new TcpServerTask thread for each incoming client connection 
+	 * How server threads are created: platform or virtual 
+	 */
+	public ExecutionMode getExecutionMode(){
+		return executionMode;
+	}
+
+	
+	/**
+	 * The seats of an event, created with all seats free the first time the event
+	 * is asked for, by a client or by another server 
+	 */
+	public EventInventory getInventory(String eventID){
+		EventInventory inventory = events.get(eventID);
+		if (inventory != null)
+			return inventory;
+		
+		eventsLock.lock();
+		try {
+			inventory = events.get(eventID);
+			if (inventory == null) {
+				inventory = new EventInventory(eventID, this, network, nSeats, partitions);
+				events.put(eventID, inventory);
+				log.info("Created event " + eventID + ": " + events.size() + " events");
+			}
+			return inventory;
+		} finally {
+			eventsLock.unlock();
+		}
+	}
+
+	
+	/**
+	 * Every event created so far 
+	 */
+	public Collection<EventInventory> getInventories(){
+		return events.values();
+	}
+
+	
+	/**
+	 * The logger of one part of the server, e.g. "mutex" or "network". Its records
+	 * go to the server's log, and its level can be set on its own with the
+	 * log.level.&lt;subsystem&gt; option; otherwise it has the server's level. 
+	 */
+	public Logger getLogger(String subsystem){
+		Logger logger = Logger.getLogger(log.getName() + "." + subsystem);
+		String level = getOption("log.level." + subsystem, null);
+		if (level != null)
+			logger.setLevel(Level.parse(level.toUpperCase()));
+		return logger;
+	}
+
+	
+	/**
+	 * Request latencies, CS timings and message counts of this server 
+	 */
+	public ServerMetrics getMetrics(){
+		return metrics;
+	}
+
+	
+	/**
+	 * The operations applied here, for catching up other servers 
+	 */
+	public OperationHistory getHistory(){
+		return history;
+	}
+
+	
+	/**
+	 * Get an option from the server file, or the given default if it is not set 
+	 */
+	public String getOption(String key, String defaultValue){
+		return options.getProperty(key, defaultValue);
+	}
+
+	
+	/**
+	 * Get an integer option from the server file, or the given default if it is not set 
+	 */
+	public int getIntOption(String key, int defaultValue){
+		String value = options.getProperty(key);
+		return value==null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	
+	/**
+	 * Run the server. With the default "nio" front end, client connections are served
+	 * by a selector and a small worker pool. With the "threads" front end, a new
+	 * TcpServerTask thread is created for each incoming client connection. Either way,
+	 * up to frontend.pipeline requests with an ID run at once on one connection 
 	 */
 	public void run() {
+		int pipeline = Math.max(1, getIntOption("frontend.pipeline", DEFAULT_PIPELINE));
+		if (getOption("frontend", "nio").equalsIgnoreCase("nio")) {
+			try {
+				nioFrontEnd = new NioClientFrontEnd(this, tcpPort, getIntOption("frontend.workers", Runtime.getRuntime().availableProcessors()), pipeline);
+				if (!stopped)
+					nioFrontEnd.run();
+			} catch (IOException e) {
+				e.printStackTrace();
+				log.warning("ERROR in NIO loop: " + e.getMessage());
+			}
+			return;
+		}
 
 		// listen for incoming TCP requests
 		log.info("Starting TCP listen loop");
 		try (ServerSocket serverSocket = new ServerSocket(tcpPort);) {
-			while (true) {
+			clientServerSocket = serverSocket;
+			while (!stopped) {
 				Socket clientSocket = serverSocket.accept();
 				log.info("Accepted TCP connection from " + clientSocket.getInetAddress() + " on port "
 						+ clientSocket.getLocalPort());
-				Thread t = new Thread(new TcpServerTask(this, clientSocket));
-				t.start();
+				clientSockets.add(clientSocket);
+				executionMode.startThread("TcpServerTask-" + clientSocket.getPort(), new TcpServerTask(this, clientSocket, pipeline));
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
-			log.warning("ERROR in TCP loop: " + e.getMessage());
+			if (!stopped) {
+				e.printStackTrace();
+				log.warning("ERROR in TCP loop: " + e.getMessage());
+			}
+		}
+
+	}
+
+
+	/**
+	 * Stop the server for good, as if the JVM exited: leave the cluster, stop
+	 * taking clients and close their connections, stop the server's threads, and
+	 * close the write-ahead log, the seat stores and the log file. For servers
+	 * sharing a JVM, like those of a LocalCluster.
+	 */
+	public void shutdown() {
+		if (stopped)
+			return;
+		stopped = true;
+		for (Thread hook : shutdownHooks) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			} catch (IllegalStateException e) {
+				// the JVM is exiting already
+			}
 		}
 
+		network.leave();
+		NioClientFrontEnd frontEnd = nioFrontEnd;
+		if (frontEnd != null)
+			frontEnd.close();
+		closeSocket(clientServerSocket);
+		for (Socket clientSocket : clientSockets)
+			closeSocket(clientSocket);
+		network.close();
+		if (replication != null)
+			replication.stop();
+		batchWorkers.shutdownNow();
+		if (operationLog != null) {
+			try {
+				operationLog.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to close the write-ahead log", e);
+			}
+		}
+		closeInventories();
+		metrics.stop();
+		log.info("Server shut down");
+		for (Handler handler : log.getHandlers()) {
+			log.removeHandler(handler);
+			handler.close();
+		}
 	}
 
 
@@ -120,26 +360,142 @@ public class Server {
 //****************************************************************
 	
 	/**
-	 *	Synchronize with other servers by updating to match incoming data 
+	 * A client connection of the "threads" front end has closed  
+	 */
+	protected void clientClosed(Socket clientSocket) {
+		clientSockets.remove(clientSocket);
+	}
+	
+	
+	
+	/**
+	 * Workers that run the request batches of every event 
 	 */
-	protected void syncData(String newData){
+	protected ExecutorService getBatchWorkers(){
+		return batchWorkers;
+	}
+	
+	
+	/**
+	 * A new seat store for an event: on the heap, or in a memory-mapped file with
+	 * the "mapped" store option. A mapped store that cannot be opened is replaced by
+	 * a heap store. 
+	 */
+	protected SeatStore newSeatStore(String eventID, int nSeats){
+		if (storeDir == null)
+			return new HeapSeatStore(nSeats);
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			TypeReference<ArrayList<String>> typeRef = new TypeReference<ArrayList<String>>() {
-			};
-			seatAssignments = mapper.readValue(newData, typeRef);
+			return new MappedSeatStore(storeDir, eventID, nSeats, getLogger("store"));
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.log(Level.SEVERE, "Cannot open mapped seat store for event " + eventID + ": keeping its seats on the heap", e);
+			return new HeapSeatStore(nSeats);
 		}
-		log.fine("Received new data: " + seatAssignments.toString());
 	}
 	
 	
 	/**
-	 *	Return the serialized data 
+	 * Add seat changes applied to an event to the write-ahead log, when they are
+	 * not part of an operation, e.g. from a snapshot
+	 * 
+	 * @return the sequence number to pass to awaitDurable, 0 if there is no log
+	 */
+	protected long logChanges(String eventID, List<SeatChange> changes){
+		if (operationLog == null || changes.isEmpty())
+			return 0L;
+		return operationLog.append(OperationLog.NO_STREAM, -1, eventID, changes);
+	}
+	
+	
+	/**
+	 * Note that an operation has been applied to an event, and add it to the
+	 * write-ahead log. Operations applied before are ignored.
+	 * 
+	 * @return the sequence number to pass to awaitDurable, 0 if there is nothing to wait for
 	 */
-	protected String getSerializedData(){
-		return serializeData();
+	protected long recordOperation(String stream, int index, String eventID, List<SeatChange> changes){
+		if (stream == null)
+			return logChanges(eventID, changes);
+		if (!history.record(stream, index, eventID, changes) || operationLog == null)
+			return 0L;
+		return operationLog.append(stream, index, eventID, changes);
+	}
+	
+	
+	/**
+	 * Block until the logged changes up to the given sequence number are on disk 
+	 */
+	protected void awaitDurable(long logSeq){
+		if (operationLog != null && logSeq > 0)
+			operationLog.awaitDurable(logSeq);
+	}
+	
+	
+	/**
+	 * Hold off event creation, and all message processing and sending on every
+	 * partition of every event. Used while a new server connects. 
+	 */
+	protected void lockAllEvents(){
+		eventsLock.lock();
+		for (EventInventory inventory : events.values())
+			for (DistributedMutex mutex : inventory.getMutexes())
+				mutex.lock();
+	}
+	
+	
+	protected void unlockAllEvents(){
+		for (EventInventory inventory : events.values())
+			for (DistributedMutex mutex : inventory.getMutexes())
+				mutex.unlock();
+		eventsLock.unlock();
+	}
+	
+	
+	/**
+	 * Send our requests still waiting for the CS to a server that just connected --
+	 * must hold lockAllEvents 
+	 */
+	protected void resendRequests(int otherServerID){
+		for (EventInventory inventory : events.values())
+			for (DistributedMutex mutex : inventory.getMutexes())
+				mutex.resendRequests(otherServerID);
+	}
+	
+	
+	/**
+	 * Forget the requests and ACKs of a server that is gone, and wake up CS
+	 * waiters 
+	 */
+	protected void peerLost(int otherServerID){
+		for (EventInventory inventory : events.values())
+			for (DistributedMutex mutex : inventory.getMutexes())
+				mutex.peerLost(otherServerID);
+		if (replication != null)
+			replication.peerLost(otherServerID);
+	}
+	
+	
+	/**
+	 * A server connected and has been caught up, or caught us up 
+	 */
+	protected void peerConnected(int otherServerID){
+		if (replication != null)
+			replication.peerConnected(otherServerID);
+	}
+	
+	
+	/**
+	 * Leader election and write forwarding, null unless replication=leader 
+	 */
+	protected LeaderReplication getReplication(){
+		return replication;
+	}
+	
+	
+	/**
+	 * The connections to the other servers 
+	 */
+	protected PeerNetwork getNetwork(){
+		return network;
 	}
 	
 	
@@ -151,10 +507,20 @@ public class Server {
 			String recString = in.readLine();
 			if(recString==null)
 				return null;
-			ObjectMapper mapper = new ObjectMapper();
-			TypeReference<HashMap<String, String>> typeRef = new TypeReference<HashMap<String, String>>() {
-			};
-			return mapper.readValue(recString, typeRef);
+			return parseRequest(recString);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Parse a request line as a JSON object  
+	 */
+	protected Map<String, String> parseRequest(String recString) {
+		try {
+			return JsonCodec.readStringMap(recString);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -166,100 +532,126 @@ public class Server {
 	 * Send response to client as a JSON object   
 	 */
 	protected void sendResponse(Map<String, String> respMap, PrintWriter out) {
-		ObjectMapper mapper = new ObjectMapper();
 		try {
-			String jsonResponse = mapper.writer().writeValueAsString(respMap);
-			out.println(jsonResponse);
+			JsonCodec.writeLine(respMap, out);
 			out.flush();
-		} catch (JsonProcessingException e1) {
+		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
 	}
 	
 	
 	/**
-	 * Process a request  
+	 * Serialize a response as one UTF-8 line of JSON, or null on failure   
 	 */
-	protected Map<String, String> processRequest(Map<String, String> receivedMap) {
-
-		// this blocks until we have permission
-		mutex.requestCriticalSection();
-		
-		Map<String, String> response = new HashMap<>();
-		String message = "Meep Morp";
-		Requests requestType = null;
-		
-		try{
-			requestType = Requests.valueOf(receivedMap.get(MessageFields.REQUEST.toString()));
-			String name = receivedMap.get(MessageFields.NAME.toString());
-			int reservedSeat = seatAssignments.indexOf(name);
-	
-			if (requestType==Requests.RESERVE) {
-				if (seatAssignments.contains(name))
-					message = "Seat already booked against name provided.";
-				else {
-					int nextSeat = seatAssignments.indexOf("");
-					if (nextSeat == -1) {
-						message = "Sold out - no seat available.";
-						response.put(MessageFields.SEATNUM.toString(), "-1");
-					} else {
-						seatAssignments.set(nextSeat, name);
-						message = "Seat assigned to you is " + (nextSeat + 1);
-						response.put(MessageFields.SEATNUM.toString(), "" + (nextSeat + 1));
-					}
-				}
+	protected byte[] serializeResponse(Map<String, String> respMap) {
+		try {
+			return JsonCodec.writeLine(respMap);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		return null;
+	}
 	
-			} else if (requestType==Requests.BOOKSEAT) {
-				int seatNum = Integer.parseInt(receivedMap.get(MessageFields.SEATNUM.toString()));
-				if (reservedSeat == seatNum)
-					message = "Seat already booked against name provided.";
-				else if (reservedSeat >= 0) {
-					message = "Seat " + (reservedSeat + 1) + " is already booked against name " + name;
-					response.put(MessageFields.SEATNUM.toString(), "" + (reservedSeat + 1));
-				} else if (!seatAssignments.get(seatNum - 1).equals("")) {
-					message = "Seat " + seatNum + " is not available.";
-				} else {
-					seatAssignments.set(seatNum - 1, name);
-					message = "Seat assigned to you is " + (seatNum);
-					response.put(MessageFields.SEATNUM.toString(), "" + (seatNum));
-				}
 	
-			} else if (requestType==Requests.SEARCH) {
-				if (reservedSeat == -1) {
-					message = "No reservation found for " + name;
-					response.put(MessageFields.SEATNUM.toString(), "" + (-1));
-				} else {
-					message = "Reserved seat for " + name + " is " + (reservedSeat + 1);
-					response.put(MessageFields.SEATNUM.toString(), "" + (reservedSeat + 1));
-				}
+	/**
+	 * Process a request. The request joins the next batch, and this blocks until
+	 * the batch has been through the CS. Returns null if the request failed.
+	 */
+	protected Map<String, String> processRequest(Map<String, String> receivedMap) {
+		try {
+			return submitRequest(receivedMap).get();
+		} catch (InterruptedException | ExecutionException e) {
+			log.warning("Request " + receivedMap + " failed: " + e.getMessage());
+			return null;
+		}
+	}
 	
-			} else if (requestType==Requests.DELETE) {
-				if (reservedSeat == -1)
-					message = "No reservation found for " + name;
-				else {
-					message = "Reservation deleted for " + name;
-					seatAssignments.set(reservedSeat, "");
+	
+	/**
+	 * Start processing a request without waiting for it. Reads on the fast path are
+	 * answered before this returns; everything else joins the next batch, here or,
+	 * with replication=leader, on the leader. Its latency is recorded in the
+	 * metrics by request type. A request with an ID gets the ID back in its
+	 * response, so a client with many requests in flight can match them up.
+	 */
+	protected CompletableFuture<Map<String, String>> submitRequest(Map<String, String> receivedMap) {
+		final long start = System.nanoTime();
+		final Requests type = requestType(receivedMap);
+		final String requestID = receivedMap.get(MessageFields.ID.toString());
+		CompletableFuture<Map<String, String>> response = startRequest(receivedMap);
+		if (type != null)
+			response.whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+				@Override
+				public void accept(Map<String, String> respMap, Throwable error) {
+					metrics.requestDone(type, start);
 				}
+			});
+		if (requestID == null)
+			return response;
+		return response.thenApply(new Function<Map<String, String>, Map<String, String>>() {
+			@Override
+			public Map<String, String> apply(Map<String, String> respMap) {
+				if (respMap != null)
+					respMap.put(MessageFields.ID.toString(), requestID);
+				return respMap;
 			}
-
-		}catch(IllegalArgumentException e){
-			// bad requestType parsing...
-			message = "Invalid command";
-		}
+		});
+	}
 	
-		response.put(MessageFields.MESSAGE.toString(), message);
+	
+	/**
+	 * Route a request: reads on the fast path are answered here, everything else
+	 * goes to the batcher of its event, or to the leader  
+	 */
+	protected CompletableFuture<Map<String, String>> startRequest(Map<String, String> receivedMap) {
+		String eventID = receivedMap.get(MessageFields.EVENT.toString());
+		if (eventID == null || eventID.isEmpty())
+			eventID = EventInventory.DEFAULT_EVENT;
+		if (eventID.length() > MAX_EVENT_ID_LENGTH)
+			return CompletableFuture.completedFuture(errorResponse("Invalid event " + eventID));
+		if (!events.containsKey(eventID) && events.size() >= maxEvents)
+			return CompletableFuture.completedFuture(errorResponse("No such event " + eventID + ": too many events"));
+		EventInventory inventory = getInventory(eventID);
 		
-		// release the critical section
-		mutex.releaseCS(serializeData());
-
-		return response;
+		if (readConsistency != ReadConsistency.MUTEX
+				&& Requests.SEARCH.toString().equals(receivedMap.get(MessageFields.REQUEST.toString())))
+			return CompletableFuture.completedFuture(processRead(inventory, receivedMap));
+		
+		if (replication != null)
+			return replication.submit(inventory, receivedMap);
+		return inventory.submit(receivedMap);
 	}
-
+	
+	
+	/**
+	 * Answer a read-only request from the local replica, without entering the CS  
+	 */
+	protected Map<String, String> processRead(EventInventory inventory, Map<String, String> receivedMap) {
+		if (readConsistency == ReadConsistency.ORDERED)
+			inventory.awaitApplied(receivedMap.get(MessageFields.NAME.toString()));
+		
+		return inventory.applyRequest(receivedMap, null, null);
+	}
+	
+	
 	
 //****************************************************************
 //	Private methods
 //****************************************************************
 	
+	/**
+	 * The type of a request, or null if it has none we know  
+	 */
+	private static Requests requestType(Map<String, String> receivedMap) {
+		String type = receivedMap.get(MessageFields.REQUEST.toString());
+		for (Requests r : Requests.values())
+			if (r.toString().equals(type))
+				return r;
+		return null;
+	}
+	
+	
 	/**
 	 * Parse the input text file
 	 */
@@ -272,11 +664,18 @@ public class Server {
 			nServers = Integer.parseInt(toks[1]);
 			nSeats = Integer.parseInt(toks[2]);
 
-			// remaining lines = server locations
+			// remaining lines = server locations, or key=value options
 			String nextServer = "";
 			servers = new ArrayList<>(nServers);
 			ports = new ArrayList<>(nServers);
 			while ((nextServer = br.readLine()) != null) {
+				if (nextServer.trim().isEmpty())
+					continue;
+				if (nextServer.contains("=")) {
+					String[] optionToks = nextServer.split("=", 2);
+					options.setProperty(optionToks[0].trim(), optionToks[1].trim());
+					continue;
+				}
 				String[] serverToks = nextServer.split(":");
 				servers.add(InetAddress.getByName(serverToks[0]));
 				ports.add(Integer.parseInt(serverToks[1]));
@@ -290,21 +689,45 @@ public class Server {
 	
 	
 	/**
-	 * serialize data into a JSON string  
+	 * Close the seat store of every event, when the server shuts down  
 	 */
-	private String serializeData() {
-		ObjectMapper mapper = new ObjectMapper();
-
+	private void closeInventories() {
+		eventsLock.lock();
 		try {
-			String serData = mapper.writer().writeValueAsString(seatAssignments);
-			return serData;
-		} catch (JsonProcessingException e) {
-			e.printStackTrace();
+			for (EventInventory inventory : events.values())
+				inventory.close();
+		} finally {
+			eventsLock.unlock();
 		}
-		return null;
 	}
 	
 	
+	private void addShutdownHook(Thread hook) {
+		shutdownHooks.add(hook);
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+	
+	
+	private void closeSocket(Closeable socket) {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warning("Failed to close " + socket + ": " + e.getMessage());
+		}
+	}
+	
+	
+	/**
+	 * A response with just a message  
+	 */
+	private Map<String, String> errorResponse(String message) {
+		Map<String, String> response = new HashMap<>();
+		response.put(MessageFields.MESSAGE.toString(), message);
+		return response;
+	}
+	
 	
 //****************************************************************
 //	main()
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and latency histograms of one server: the latency of each client
+ * request type, the time a batch waits for the CS and holds it, and the time to
+ * apply another server's RELEASE; the messages sent to and read from each server
+ * by type; and the live servers, client connections and queue depths. Recording
+ * takes a few atomic adds and no locks.
+ * <p>
+ * The metrics are registered in JMX as "Server:type=Metrics,id=N", and with the
+ * metrics.port option also served as plain text on that loopback port, one
+ * "name{labels} value" line each, which Prometheus can scrape.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private static final LamportMessageType[] MESSAGE_TYPES = LamportMessageType.values();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final Server server;
+	private final Map<Requests, LatencyHistogram> requestLatency = new EnumMap<>(Requests.class);
+	private final LatencyHistogram csWait = new LatencyHistogram();
+	private final LatencyHistogram csHold = new LatencyHistogram();
+	private final LatencyHistogram releaseApply = new LatencyHistogram();
+	private final ConcurrentMap<Integer, AtomicLongArray> sent = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Integer, AtomicLongArray> received = new ConcurrentHashMap<>();
+	private final AtomicInteger clientConnections = new AtomicInteger();
+	private ObjectName name;
+	private HttpServer http;
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	public ServerMetrics(Server server) {
+		this.server = server;
+		for (Requests type : Requests.values())
+			requestLatency.put(type, new LatencyHistogram());
+	}
+
+
+	/**
+	 * Register in JMX, and start serving the metrics as text if metrics.port is
+	 * set. Port 0 picks a free port, which is logged.
+	 */
+	public void start() {
+		try {
+			name = new ObjectName("Server:type=Metrics,id=" + (server.getID() + 1));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			server.log.log(Level.WARNING, "Cannot register metrics in JMX: " + e.getMessage());
+		}
+
+		int port = server.getIntOption("metrics.port", -1);
+		if (port < 0)
+			return;
+		try {
+			http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				}
+			});
+			http.start();
+			server.log.info("Serving metrics on http://" + http.getAddress().getHostString() + ":" + http.getAddress().getPort() + "/");
+		} catch (IOException e) {
+			server.log.log(Level.WARNING, "Cannot serve metrics on port " + port + ": " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Leave JMX and stop serving the metrics, when the server shuts down
+	 */
+	public void stop() {
+		try {
+			if (name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			server.log.log(Level.WARNING, "Cannot unregister metrics from JMX: " + e.getMessage());
+		}
+		if (http != null)
+			http.stop(0);
+	}
+
+
+	/**
+	 * A client request of the given type, started at startNanos, has been answered
+	 */
+	public void requestDone(Requests type, long startNanos) {
+		requestLatency.get(type).recordSince(startNanos);
+	}
+
+
+	/**
+	 * A batch asked for the CS at startNanos and has just been granted it
+	 */
+	public void csEntered(long startNanos) {
+		csWait.recordSince(startNanos);
+	}
+
+
+	/**
+	 * A batch entered the CS at startNanos and has just released it
+	 */
+	public void csReleased(long startNanos) {
+		csHold.recordSince(startNanos);
+	}
+
+
+	/**
+	 * Another server's RELEASE, received at startNanos, has just been applied
+	 */
+	public void releaseApplied(long startNanos) {
+		releaseApply.recordSince(startNanos);
+	}
+
+
+	public void messageSent(int otherServerID, LamportMessageType type) {
+		count(sent, otherServerID, type);
+	}
+
+
+	public void messageReceived(int otherServerID, LamportMessageType type) {
+		count(received, otherServerID, type);
+	}
+
+
+	public void clientConnected() {
+		clientConnections.incrementAndGet();
+	}
+
+
+	public void clientDisconnected() {
+		clientConnections.decrementAndGet();
+	}
+
+
+	@Override
+	public int getNumServers() {
+		return server.getNetwork().getNumServers();
+	}
+
+
+	@Override
+	public int getClientConnections() {
+		return clientConnections.get();
+	}
+
+
+	@Override
+	public int getMutexQueueDepth() {
+		int depth = 0;
+		for (EventInventory inventory : server.getInventories())
+			for (DistributedMutex mutex : inventory.getMutexes())
+				depth += mutex.getQueueDepth();
+		return depth;
+	}
+
+
+	@Override
+	public Map<String, Integer> getPeerQueueDepths() {
+		Map<String, Integer> depths = new TreeMap<>();
+		for (PeerConnection peer : server.getNetwork().getConnections())
+			depths.put("" + (peer.id + 1), peer.getUnsent());
+		return depths;
+	}
+
+
+	@Override
+	public Map<String, Long> getMessagesSent() {
+		return byPeerAndType(sent);
+	}
+
+
+	@Override
+	public Map<String, Long> getMessagesReceived() {
+		return byPeerAndType(received);
+	}
+
+
+	@Override
+	public Map<String, String> getLatencies() {
+		Map<String, String> latencies = new TreeMap<>();
+		for (Map.Entry<Requests, LatencyHistogram> entry : requestLatency.entrySet())
+			latencies.put(entry.getKey().toString(), entry.getValue().toString());
+		latencies.put("cs.wait", csWait.toString());
+		latencies.put("cs.hold", csHold.toString());
+		latencies.put("release.apply", releaseApply.toString());
+		return latencies;
+	}
+
+
+	@Override
+	public void resetLatencies() {
+		for (LatencyHistogram histogram : requestLatency.values())
+			histogram.reset();
+		csWait.reset();
+		csHold.reset();
+		releaseApply.reset();
+	}
+
+
+	/**
+	 * Every metric as text, one "name{labels} value" line each, latencies in
+	 * microseconds
+	 */
+	public String scrape() {
+		StringBuilder text = new StringBuilder(4096);
+		String id = "server=\"" + (server.getID() + 1) + "\"";
+		line(text, "servers", id, getNumServers());
+		line(text, "client_connections", id, getClientConnections());
+		line(text, "mutex_queue_depth", id, getMutexQueueDepth());
+		for (PeerConnection peer : server.getNetwork().getConnections()) {
+			String labels = id + ",peer=\"" + (peer.id + 1) + "\"";
+			line(text, "peer_queue_depth", labels, peer.getUnsent());
+			line(text, "peer_queue_max_depth", labels, peer.getMaxUnsent());
+			line(text, "peer_writes_total", labels, peer.getWrites());
+			line(text, "peer_blocked_batches_total", labels, peer.getBlockedBatches());
+		}
+		messages(text, "messages_sent_total", id, sent);
+		messages(text, "messages_received_total", id, received);
+		for (Map.Entry<Requests, LatencyHistogram> entry : requestLatency.entrySet())
+			histogram(text, "request_latency_us", id + ",type=\"" + entry.getKey() + "\"", entry.getValue());
+		histogram(text, "cs_wait_us", id, csWait);
+		histogram(text, "cs_hold_us", id, csHold);
+		histogram(text, "release_apply_us", id, releaseApply);
+		return text.toString();
+	}
+
+
+//****************************************************************
+//	Private Methods
+//****************************************************************
+
+	private static void count(ConcurrentMap<Integer, AtomicLongArray> counters, int otherServerID, LamportMessageType type) {
+		AtomicLongArray counts = counters.get(otherServerID);
+		if (counts == null) {
+			counters.putIfAbsent(otherServerID, new AtomicLongArray(MESSAGE_TYPES.length));
+			counts = counters.get(otherServerID);
+		}
+		counts.incrementAndGet(type.ordinal());
+	}
+
+
+	private static Map<String, Long> byPeerAndType(ConcurrentMap<Integer, AtomicLongArray> counters) {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<Integer, AtomicLongArray> entry : counters.entrySet())
+			for (LamportMessageType type : MESSAGE_TYPES) {
+				long n = entry.getValue().get(type.ordinal());
+				if (n > 0)
+					counts.put((entry.getKey() + 1) + "/" + type, n);
+			}
+		return counts;
+	}
+
+
+	private static void messages(StringBuilder text, String name, String labels, ConcurrentMap<Integer, AtomicLongArray> counters) {
+		for (Map.Entry<Integer, AtomicLongArray> entry : new TreeMap<>(counters).entrySet())
+			for (LamportMessageType type : MESSAGE_TYPES) {
+				long n = entry.getValue().get(type.ordinal());
+				if (n > 0)
+					line(text, name, labels + ",peer=\"" + (entry.getKey() + 1) + "\",type=\"" + type + "\"", n);
+			}
+	}
+
+
+	/**
+	 * A histogram as a Prometheus summary: its quantiles, sum and count, and max
+	 */
+	private static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+		for (double q : QUANTILES)
+			line(text, name, labels + ",quantile=\"" + q + "\"", histogram.getPercentile(q * 100));
+		line(text, name + "_sum", labels, histogram.getSum());
+		line(text, name + "_count", labels, histogram.getCount());
+		line(text, name + "_max", labels, histogram.getMax());
+	}
+
+
+	private static void line(StringBuilder text, String name, String labels, long value) {
+		text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+}
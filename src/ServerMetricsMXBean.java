@@ -0,0 +1,58 @@
+import java.util.Map;
+
+/**
+ * The metrics of a server as seen in JMX, e.g. with jconsole. Latencies are
+ * summaries in microseconds, as printed by LatencyHistogram; the same numbers
+ * are served as plain text with the metrics.port option.
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * Number of live servers, including this one
+	 */
+	int getNumServers();
+
+
+	/**
+	 * Number of open client connections
+	 */
+	int getClientConnections();
+
+
+	/**
+	 * CS requests waiting or in the CS, over every partition of every event
+	 */
+	int getMutexQueueDepth();
+
+
+	/**
+	 * Messages queued to other servers and not yet written, by server ID
+	 */
+	Map<String, Integer> getPeerQueueDepths();
+
+
+	/**
+	 * Messages written to other servers, by "serverID/type"
+	 */
+	Map<String, Long> getMessagesSent();
+
+
+	/**
+	 * Messages read from other servers, by "serverID/type"
+	 */
+	Map<String, Long> getMessagesReceived();
+
+
+	/**
+	 * Latency of client requests by request type, and of CS wait, CS hold and
+	 * RELEASE apply
+	 */
+	Map<String, String> getLatencies();
+
+
+	/**
+	 * Start the latencies over
+	 */
+	void resetLatencies();
+
+}
@@ -0,0 +1,719 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Suzuki-Kasami token-based mutual exclusion for one seat partition of one event.
+ * Only the server holding the token may enter the CS. A server without it
+ * broadcasts a numbered REQUEST; the holder passes the token on when it leaves the
+ * CS, to the servers that asked, in the order they are queued in the token.
+ * <p>
+ * A CS that changed seats broadcasts them (CS_RELEASE) before passing the token.
+ * The token remembers the last such operation of every server, and a new holder
+ * waits until it has applied all of them, since they may come over other
+ * connections than the token did.
+ * <p>
+ * There is no token at first, and one may be lost with a server that dies. The
+ * lowest live server then asks every server whether it holds it (TOKEN_QUERY), and
+ * makes a new one if none does. Every token has a generation; once asked, servers
+ * drop tokens of older generations, so a token still on its way cannot come back.
+ */
+public class SuzukiKasamiMutex implements DistributedMutex {
+
+//****************************************************************
+//	Fields
+//****************************************************************
+	private PeerNetwork network;
+	private EventInventory inventory;
+	private int partition;
+	private LogicalClock clock;
+	private int serverID;
+	private Server server;
+	private Logger log;
+
+	private Map<Integer, Integer> requested;	// highest request number heard from each server
+	private boolean outstanding;		// our request numbered requested(serverID) is not served yet
+	private int lastServed;				// request number of our last CS entry
+	private int lastUpdate = -1;		// request ID of our last CS that changed seats
+	private Token token;				// null unless held here
+	private int passedTo = -1;			// server we last sent the token to
+	private LamportMessage inCS;
+	private ArrayDeque<LamportMessage> waiting;
+	private Set<Integer> forgotten;		// servers lost while the token was elsewhere
+	private int minGeneration;
+	private boolean tokenStale;			// a newer token was made while we held this one
+	private boolean tokenSeen;
+
+	private int queryRound;				// 0 is a generation sync, see resendRequests
+	private int queryGeneration;
+	private Set<Integer> queryPending;
+	private Token queryResult;
+	private boolean queryFound;
+	private int queryMaxGeneration;		// highest generation any server had heard of
+	private boolean queryAgain;			// the token was lost after some server answered
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition csCondition = lock.newCondition();
+
+
+//****************************************************************
+//	Suzuki-Kasami Methods
+//****************************************************************
+
+	/**
+	 * Request the CS, blocking until the token is here and no earlier request of
+	 * ours is waiting or in the CS
+	 *
+	 * @return the ID of the granted request, to be passed to releaseCS
+	 */
+	@Override
+	public int requestCriticalSection() {
+		LamportMessage lm;
+		lock.lock();
+		try {
+			lm = sendRequest(clock.value(), network.nextRequestID());
+		} finally {
+			lock.unlock();
+		}
+		awaitCS(lm);
+		return lm.requestID;
+	}
+
+
+	@Override
+	public long releaseCS(int requestID, List<SeatChange> changes) {
+		BitSet partitions = new BitSet();
+		partitions.set(partition);
+		return inventory.releaseCriticalSections(partitions, requestID, changes);
+	}
+
+
+	/**
+	 * Only make the request: the token is asked for once awaitCS is called. A
+	 * request for several partitions then holds the token of one only while it
+	 * waits for a later partition, so such requests cannot wait for each other in a
+	 * cycle -- must hold lock
+	 */
+	@Override
+	public LamportMessage sendRequest(int timestamp, int requestID) {
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Requesting CS on partition " + partition);
+		return LamportMessage.REQUEST(serverID, inventory.getID(), partition, new LogicalClock(timestamp), requestID);
+	}
+
+
+	/**
+	 * Ask for the token unless it is here, and wait for it, and for our earlier
+	 * requests, and for every change the token says was made before
+	 */
+	@Override
+	public void awaitCS(LamportMessage lm) {
+		lock.lock();
+		try {
+			waiting.addLast(lm);
+			askForToken();
+			while( !canEnterCS(lm) )
+				csCondition.awaitUninterruptibly();
+			inCS = lm;
+			outstanding = false;
+			lastServed = requested(serverID);
+		} finally {
+			lock.unlock();
+		}
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Entering CS on partition " + partition + " with request " + lm.requestID);
+	}
+
+
+	/**
+	 * Send the seat changes, if any, then pass the token to the next server queued
+	 */
+	@Override
+	public void release(int requestID, String data) {
+		if(log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Releasing CS for request " + requestID);
+		lock.lock();
+		try {
+			if(!LamportMessage.NO_DATA.equals(data)){
+				broadcastMessage(LamportMessage.RELEASE(serverID, inventory.getID(), partition, clock, requestID, data));
+				lastUpdate = requestID;
+				token.lastStream.put(serverID, server.getHistory().getLocalStream());
+				token.lastIndex.put(serverID, requestID);
+			}
+
+			Iterator<LamportMessage> it = waiting.iterator();
+			while(it.hasNext())
+				if(it.next() == inCS)
+					it.remove();
+			inCS = null;
+			token.served.put(serverID, lastServed);
+
+			if(tokenStale)
+				dropToken();
+			else
+				passToken();
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Process a received REQUEST, TOKEN, seat update (CS_RELEASE), TOKEN_QUERY,
+	 * TOKEN_STATE or TOKEN_LOST
+	 */
+	@Override
+	public void processMessage(LamportMessage lm) {
+		if(log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Processing message " + lm.toString());
+		clock.advance(lm.clock);
+
+		lock.lock();
+		try {
+			if(lm.type == LamportMessageType.CS_REQUEST){
+				requested.put(lm.serverID, Math.max(requested(lm.serverID), lm.requestID));
+				if(token != null && inCS == null && waiting.isEmpty())
+					passToken();
+				else if(token == null && !tokenSeen)
+					startQuery();
+
+			} else if(lm.type == LamportMessageType.TOKEN){
+				receiveToken(Token.fromJson(lm.data));
+
+			} else if(lm.type == LamportMessageType.CS_RELEASE){
+				inventory.applyOperation(network.getPeerStream(lm.serverID), lm.requestID, lm.data);
+				csCondition.signalAll();
+
+			} else if(lm.type == LamportMessageType.TOKEN_QUERY){
+				if(lm.requestID == 0)
+					syncGeneration(lm);
+				else
+					answerQuery(lm);
+
+			} else if(lm.type == LamportMessageType.TOKEN_STATE){
+				receiveState(lm);
+
+			} else if(lm.type == LamportMessageType.TOKEN_LOST){
+				if(queryPending != null)
+					queryAgain = true;
+				else
+					startQuery();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Bad token message " + lm, e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Broadcast a new request, unless the token is here or we asked already -- must hold lock
+	 */
+	private void askForToken() {
+		if(token != null || outstanding)
+			return;
+		requested.put(serverID, requested(serverID) + 1);
+		outstanding = true;
+		broadcastMessage(LamportMessage.REQUEST(serverID, inventory.getID(), partition, clock, requested(serverID)));
+		if(!tokenSeen)
+			startQuery();
+	}
+
+
+	/**
+	 * Highest request number heard from a server, 0 if none -- must hold lock
+	 */
+	private int requested(int otherServerID) {
+		Integer n = requested.get(otherServerID);
+		return n == null ? 0 : n;
+	}
+
+
+	/**
+	 * Queue every server that asked for the token and is not served yet, and send
+	 * the token to the first one queued. Asks for it again if we still need it -- must hold lock
+	 */
+	private void passToken() {
+		for(Map.Entry<Integer, Integer> request : new TreeMap<>(requested).entrySet()){
+			int i = request.getKey();
+			if(i != serverID && request.getValue() > token.served(i) && !token.queue.contains(i))
+				token.queue.addLast(i);
+		}
+		if(token.queue.isEmpty())
+			return;
+
+		int next = token.queue.removeFirst();
+		try {
+			if(log.isLoggable(Level.FINE))
+				log.log(Level.FINE, "Passing token of partition " + partition + " to server " + next);
+			sendMessage(next, LamportMessage.TOKEN(serverID, inventory.getID(), partition, clock, token.toJson()));
+			token = null;
+			passedTo = next;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Failed to serialize token", e);
+			return;
+		}
+		if(!waiting.isEmpty())
+			askForToken();
+	}
+
+
+	/**
+	 * Take the token, unless it is from an older generation -- must hold lock
+	 */
+	private void receiveToken(Token received) {
+		if(received.generation < minGeneration){
+			if(log.isLoggable(Level.FINE))
+				log.log(Level.FINE, "Dropping token of generation " + received.generation + " on partition " + partition);
+			return;
+		}
+		minGeneration = received.generation;
+		tokenSeen = true;
+		token = received;
+		for(int lost : forgotten)
+			token.forget(lost);
+		forgotten.clear();
+
+		if(waiting.isEmpty())
+			passToken();
+		csCondition.signalAll();
+	}
+
+
+	/**
+	 * Conditions for entering the CS -- must hold lock
+	 */
+	private boolean canEnterCS(LamportMessage lm) {
+		return token != null && inCS == null && waiting.peekFirst() == lm && caughtUp();
+	}
+
+
+	/**
+	 * True if every change the token says was made in an earlier CS has been applied
+	 * here. Changes of servers that are gone, or restarted since, are not waited for:
+	 * they are caught up on when the server connects. -- must hold lock
+	 */
+	private boolean caughtUp() {
+		for(Map.Entry<Integer, String> last : token.lastStream.entrySet()){
+			int i = last.getKey();
+			String stream = last.getValue();
+			if(i == serverID || !network.isConnected(i) || !stream.equals(network.getPeerStream(i)))
+				continue;
+			if(!server.getHistory().isApplied(stream, token.lastIndex.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Ask every live server whether it holds the token, if we are the lowest live
+	 * server and not asking already -- must hold lock
+	 */
+	private void startQuery() {
+		if(token != null || queryPending != null || network.getLowestLiveServer() != serverID)
+			return;
+
+		queryRound++;
+		queryGeneration = minGeneration + 1;
+		minGeneration = queryGeneration;
+		queryFound = false;
+		queryMaxGeneration = queryGeneration;
+		queryResult = new Token(queryGeneration);
+		queryResult.served.put(serverID, lastServed);
+		if(lastUpdate >= 0){
+			queryResult.lastStream.put(serverID, server.getHistory().getLocalStream());
+			queryResult.lastIndex.put(serverID, lastUpdate);
+		}
+		queryPending = new HashSet<>(network.getPeerIDs());
+
+		log.log(Level.INFO, "Looking for the token of event " + inventory.getID() + ", partition " + partition);
+		broadcastMessage(LamportMessage.TOKEN_QUERY(serverID, inventory.getID(), partition, clock, queryRound, Integer.toString(queryGeneration)));
+		if(queryPending.isEmpty())
+			finishQuery();
+	}
+
+
+	/**
+	 * Learn the generation a server that just connected knows of, and tell it ours if
+	 * it is newer. A token held here that is older was made again while we were cut
+	 * off, so it is dropped, once out of the CS if in it. -- must hold lock
+	 */
+	private void syncGeneration(LamportMessage sync) {
+		int generation = Integer.parseInt(sync.data);
+		if(generation > minGeneration)
+			minGeneration = generation;
+		else if(generation < minGeneration)
+			sendMessage(sync.serverID, LamportMessage.TOKEN_QUERY(serverID, inventory.getID(), partition, clock, 0, Integer.toString(minGeneration)));
+
+		if(token != null && token.generation < minGeneration){
+			if(inCS == null)
+				dropToken();
+			else
+				tokenStale = true;
+		}
+	}
+
+
+	/**
+	 * Give up a token that is no longer valid, and ask for the valid one if needed -- must hold lock
+	 */
+	private void dropToken() {
+		log.log(Level.WARNING, "Dropping token of generation " + token.generation + " for event "
+				+ inventory.getID() + ", partition " + partition + ": a newer one was made");
+		token = null;
+		tokenStale = false;
+		if(!waiting.isEmpty())
+			askForToken();
+	}
+
+
+	/**
+	 * Tell the asking server what we know of the token, and from now on drop tokens
+	 * older than the one it may make. A token held here moves up to that
+	 * generation. -- must hold lock
+	 */
+	private void answerQuery(LamportMessage query) throws IOException {
+		int generation = Integer.parseInt(query.data);
+		minGeneration = Math.max(minGeneration, generation);
+		if(token != null)
+			token.generation = Math.max(token.generation, minGeneration);
+
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+			gen.writeStartObject();
+			gen.writeBooleanField("holding", token != null);
+			gen.writeNumberField("generation", minGeneration);
+			gen.writeNumberField("requested", requested(serverID));
+			gen.writeNumberField("served", lastServed);
+			gen.writeNumberField("lastUpdate", lastUpdate);
+			gen.writeEndObject();
+		}
+		sendMessage(query.serverID, LamportMessage.TOKEN_STATE(serverID, inventory.getID(), partition, clock, query.requestID, out.toString()));
+	}
+
+
+	/**
+	 * Collect an answer to our TOKEN_QUERY -- must hold lock
+	 */
+	private void receiveState(LamportMessage state) throws IOException {
+		if(queryPending == null || state.requestID != queryRound || !queryPending.remove(state.serverID))
+			return;
+
+		int other = state.serverID;
+		try (JsonParser parser = JsonCodec.factory().createParser(state.data)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Expected a token state");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("holding"))
+					queryFound |= parser.getBooleanValue();
+				else if (field.equals("generation"))
+					queryMaxGeneration = Math.max(queryMaxGeneration, parser.getIntValue());
+				else if (field.equals("requested"))
+					requested.put(other, Math.max(requested(other), parser.getIntValue()));
+				else if (field.equals("served"))
+					queryResult.served.put(other, parser.getIntValue());
+				else if (field.equals("lastUpdate") && parser.getIntValue() >= 0 && network.getPeerStream(other) != null){
+					queryResult.lastStream.put(other, network.getPeerStream(other));
+					queryResult.lastIndex.put(other, parser.getIntValue());
+				} else
+					parser.skipChildren();
+			}
+		}
+		if(queryPending.isEmpty())
+			finishQuery();
+	}
+
+
+	/**
+	 * Every live server answered: make a new token if none of them holds one. If a
+	 * server had heard of a newer generation than we asked with, a token of it may
+	 * still be on its way, so ask again with a higher one. -- must hold lock
+	 */
+	private void finishQuery() {
+		queryPending = null;
+		if(queryAgain){
+			queryAgain = false;
+			startQuery();
+			return;
+		}
+		if(queryFound || token != null){
+			tokenSeen = true;
+			return;
+		}
+		if(queryMaxGeneration > queryGeneration){
+			minGeneration = Math.max(minGeneration, queryMaxGeneration);
+			startQuery();
+			return;
+		}
+		tokenSeen = true;
+
+		log.log(Level.INFO, "Making token of generation " + queryResult.generation + " for event "
+				+ inventory.getID() + ", partition " + partition);
+		receiveToken(queryResult);
+		queryResult = null;
+	}
+
+
+	/**
+	 * Send a message to another server, specified by their serverID -- must hold lock
+	 */
+	private void sendMessage(int otherServerID, LamportMessage message) {
+		network.sendMessage(otherServerID, message);
+		clock.increment();
+	}
+
+
+	/**
+	 * Broadcast message to all other listening servers -- must hold lock
+	 */
+	private void broadcastMessage(LamportMessage msg) {
+		network.broadcastMessage(msg);
+		clock.increment();
+	}
+
+
+//****************************************************************
+//	Public Methods
+//****************************************************************
+
+	/**
+	 * Constructor
+	 */
+	public SuzukiKasamiMutex(PeerNetwork network, Server server, EventInventory inventory, int partition) {
+		this.network = network;
+		this.inventory = inventory;
+		this.server = server;
+		this.log = server.getLogger("mutex");
+		this.serverID = server.getID();
+		this.partition = partition;
+		requested = new HashMap<>();
+		waiting = new ArrayDeque<>();
+		forgotten = new HashSet<>();
+		clock = new LogicalClock(0);
+	}
+
+
+	@Override
+	public int getPartition() {
+		return partition;
+	}
+
+
+	/**
+	 * Our own requests, and the servers queued in the token if it is here
+	 */
+	@Override
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return waiting.size() + (token == null ? 0 : token.queue.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public int currentTime() {
+		return clock.value();
+	}
+
+
+//****************************************************************
+//	Network Methods -- called by the PeerNetwork
+//****************************************************************
+
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+
+
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+
+
+	/**
+	 * Send our request, if it is not served yet, to a server that just connected:
+	 * the token may reach it before anyone else. Also sync generations with it, in
+	 * case it held a token while cut off that was made again since. -- must hold lock
+	 */
+	@Override
+	public void resendRequests(int otherServerID) {
+		network.sendMessage(otherServerID, LamportMessage.TOKEN_QUERY(serverID, inventory.getID(), partition, clock, 0, Integer.toString(minGeneration)));
+		if(outstanding)
+			network.sendMessage(otherServerID, LamportMessage.REQUEST(serverID, inventory.getID(), partition, clock, requested(serverID)));
+	}
+
+
+	/**
+	 * Forget the requests of a server that is gone. Its request numbers start over
+	 * if it restarts, so the token forgets which of them were served, or is told to
+	 * once it gets here. If the token may have been lost with the server, look for it,
+	 * or have the lowest live server look for it if we were the last to send it there:
+	 * that server may have asked us before we saw the token go.
+	 */
+	@Override
+	public void peerLost(int otherServerID) {
+		lock.lock();
+		try {
+			requested.remove(otherServerID);
+			if(token != null)
+				token.forget(otherServerID);
+			else
+				forgotten.add(otherServerID);
+
+			int lowest = network.getLowestLiveServer();
+			if(queryPending != null && queryPending.remove(otherServerID) && queryPending.isEmpty())
+				finishQuery();
+			else if(token == null && passedTo == otherServerID && lowest != serverID)
+				sendMessage(lowest, LamportMessage.TOKEN_LOST(serverID, inventory.getID(), partition, clock));
+			else
+				startQuery();
+			csCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+//****************************************************************
+//	Private Classes
+//****************************************************************
+
+	/**
+	 * The token: the last request served of every server, the servers waiting for
+	 * it, and the last operation with seat changes of every server
+	 */
+	private static class Token {
+		int generation;
+		final Map<Integer, Integer> served = new TreeMap<>();
+		final ArrayDeque<Integer> queue = new ArrayDeque<>();
+		final Map<Integer, String> lastStream = new TreeMap<>();
+		final Map<Integer, Integer> lastIndex = new TreeMap<>();
+
+		Token(int generation) {
+			this.generation = generation;
+		}
+
+
+		/**
+		 * Last request served of a server, 0 if none
+		 */
+		int served(int otherServerID) {
+			Integer n = served.get(otherServerID);
+			return n == null ? 0 : n;
+		}
+
+
+		/**
+		 * Drop a server that is gone
+		 */
+		void forget(int otherServerID) {
+			served.remove(otherServerID);
+			queue.remove(otherServerID);
+			lastStream.remove(otherServerID);
+			lastIndex.remove(otherServerID);
+		}
+
+
+		/**
+		 * {"generation":g, "served":{"server":n,...}, "queue":[...], "last":[[server,stream,index],...]}
+		 */
+		String toJson() throws IOException {
+			StringWriter out = new StringWriter();
+			try (JsonGenerator gen = JsonCodec.factory().createGenerator(out)) {
+				gen.writeStartObject();
+				gen.writeNumberField("generation", generation);
+				gen.writeObjectFieldStart("served");
+				for (Map.Entry<Integer, Integer> entry : served.entrySet())
+					gen.writeNumberField(Integer.toString(entry.getKey()), entry.getValue());
+				gen.writeEndObject();
+				gen.writeArrayFieldStart("queue");
+				for (int i : queue)
+					gen.writeNumber(i);
+				gen.writeEndArray();
+				gen.writeArrayFieldStart("last");
+				for (Map.Entry<Integer, String> last : lastStream.entrySet()) {
+					gen.writeStartArray();
+					gen.writeNumber(last.getKey());
+					gen.writeString(last.getValue());
+					gen.writeNumber(lastIndex.get(last.getKey()));
+					gen.writeEndArray();
+				}
+				gen.writeEndArray();
+				gen.writeEndObject();
+			}
+			return out.toString();
+		}
+
+
+		static Token fromJson(String json) throws IOException {
+			Token token = new Token(0);
+			try (JsonParser parser = JsonCodec.factory().createParser(json)) {
+				if (parser.nextToken() != JsonToken.START_OBJECT)
+					throw new IOException("Expected a token");
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					parser.nextToken();
+					if (field.equals("generation"))
+						token.generation = parser.getIntValue();
+					else if (field.equals("served")) {
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							int i = Integer.parseInt(parser.getCurrentName());
+							parser.nextToken();
+							token.served.put(i, parser.getIntValue());
+						}
+					} else if (field.equals("queue")) {
+						while (parser.nextToken() == JsonToken.VALUE_NUMBER_INT)
+							token.queue.addLast(parser.getIntValue());
+					} else if (field.equals("last")) {
+						while (parser.nextToken() == JsonToken.START_ARRAY) {
+							parser.nextToken();
+							int i = parser.getIntValue();
+							parser.nextToken();
+							String stream = parser.getValueAsString();
+							parser.nextToken();
+							int index = parser.getIntValue();
+							if (parser.nextToken() != JsonToken.END_ARRAY)
+								throw new IOException("Expected the end of a last operation");
+							token.lastStream.put(i, stream);
+							token.lastIndex.put(i, index);
+						}
+					} else
+						parser.skipChildren();
+				}
+			}
+			return token;
+		}
+
+		@Override
+		public String toString() {
+			return "Token[generation=" + generation + ", served=" + served + ", queue=" + queue + "]";
+		}
+	}
+
+}
@@ -4,59 +4,169 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class TcpServerTask implements Runnable {
 //****************************************************************
 //	Fields
 //****************************************************************	
+	private static final Map<String, String> STOP = new HashMap<>();
+
 	private Socket clientSocket;
 	private Server server;
+	private Logger log;
+	private int pipeline;
+	private Semaphore inFlight;
+	private BlockingQueue<Map<String, String>> responses;
+	private Thread writer;
 	
 	
 //****************************************************************
 //	Public Methods
 //****************************************************************	
 
-	public TcpServerTask(Server server, Socket clientSocket) {
+	/**
+	 * Constructor
+	 *
+	 * @param pipeline	most requests with an ID processed at once for this connection
+	 */
+	public TcpServerTask(Server server, Socket clientSocket, int pipeline) {
 		super();
 		this.server = server;
+		this.log = server.getLogger("client");
 		this.clientSocket = clientSocket;
+		this.pipeline = pipeline;
+		this.inFlight = new Semaphore(pipeline);
+		this.responses = new LinkedBlockingQueue<>();
 	}
 
 	
+	/**
+	 * Read requests until the client disconnects. A request without an ID is
+	 * answered before the next one is read; requests with an ID are started as
+	 * they arrive and answered as they complete, up to the pipeline limit, by a
+	 * writer thread of this connection.
+	 */
 	@Override
 	public void run() {
 		
+		server.getMetrics().clientConnected();
+		try {
+			// pipelined responses go out while earlier ones are unacknowledged
+			clientSocket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			log.warning("Cannot set TCP_NODELAY for " + clientSocket.getInetAddress() + ": " + e.getMessage());
+		}
 		try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true); 
 				BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
 			Map<String, String> receivedMap = null;
 			while ((receivedMap = server.receiveRequest(in)) != null) {
-				server.log.info("Received request map " + receivedMap + " from " + clientSocket.getInetAddress());
+				if (log.isLoggable(Level.FINE))
+					log.fine("Received request map " + receivedMap + " from " + clientSocket.getInetAddress());
+				if (receivedMap.containsKey(MessageFields.ID.toString())) {
+					submitPipelined(receivedMap, out);
+					continue;
+				}
 				Map<String, String> respMap = server.processRequest(receivedMap);
 				if(respMap==null)
 					break;
 				else {
-					server.log.info("Sending response map " + respMap + " to " + clientSocket.getInetAddress());
-					server.sendResponse(respMap, out);
+					if (log.isLoggable(Level.FINE))
+						log.fine("Sending response map " + respMap + " to " + clientSocket.getInetAddress());
+					synchronized (out) {
+						server.sendResponse(respMap, out);
+					}
 				}
 			}
 			
+			// let the requests still in flight answer before closing
+			inFlight.acquireUninterruptibly(pipeline);
 		} catch (EOFException e) {
-			server.log.warning("Connection to " + clientSocket.getInetAddress() + " ended unexpectedly.");
+			log.warning("Connection to " + clientSocket.getInetAddress() + " ended unexpectedly.");
 		} catch (IOException e) {
-			server.log.warning("IOException! Client " + clientSocket.getInetAddress() + " probably disconnected...");
+			log.warning("IOException! Client " + clientSocket.getInetAddress() + " probably disconnected...");
 		} catch (NullPointerException e){
-			server.log.warning("NullPointerException! Client " + clientSocket.getInetAddress() + " probably disconnected...");
+			log.warning("NullPointerException! Client " + clientSocket.getInetAddress() + " probably disconnected...");
 		} finally {
+			if (writer != null)
+				responses.add(STOP);
 			try {
-				server.log.fine("Closing connection to client " + clientSocket.getInetAddress());
+				log.fine("Closing connection to client " + clientSocket.getInetAddress());
 				clientSocket.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			server.clientClosed(clientSocket);
+			server.getMetrics().clientDisconnected();
 		}
 		
 	}
 	
+	
+//****************************************************************
+//	Private Methods
+//****************************************************************	
+
+	/**
+	 * Start a request with an ID, waiting first if the pipeline is full, and queue
+	 * its response for the writer whenever it completes. The request completes on
+	 * a batch thread, which must not wait on a slow client, so it never writes to
+	 * the socket. A failed request closes the connection, as it does for requests
+	 * without an ID.
+	 */
+	private void submitPipelined(final Map<String, String> receivedMap, final PrintWriter out) {
+		if (writer == null)
+			writer = server.getExecutionMode().startThread("TcpServerTask-writer-" + clientSocket.getPort(), new Runnable() {
+				@Override
+				public void run() {
+					writerLoop(out);
+				}
+			});
+		inFlight.acquireUninterruptibly();
+		server.submitRequest(receivedMap).whenComplete(new BiConsumer<Map<String, String>, Throwable>() {
+			@Override
+			public void accept(Map<String, String> respMap, Throwable error) {
+				if (error != null || respMap == null) {
+					log.warning("Request " + receivedMap + " failed: " + error);
+					inFlight.release();
+					try {
+						clientSocket.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					return;
+				}
+				responses.add(respMap);
+			}
+		});
+	}
+
+
+	/**
+	 * Write the responses of pipelined requests as they are queued, until the
+	 * connection closes
+	 */
+	private void writerLoop(PrintWriter out) {
+		try {
+			Map<String, String> respMap;
+			while ((respMap = responses.take()) != STOP) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Sending response map " + respMap + " to " + clientSocket.getInetAddress());
+				synchronized (out) {
+					server.sendResponse(respMap, out);
+				}
+				inFlight.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 }
\ No newline at end of file